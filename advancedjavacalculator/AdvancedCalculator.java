@@ -7,45 +7,73 @@
 package advancedjavacalculator;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.math.MathContext;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Scanner;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
-import advancedjavacalculator.Parser.CalcParser;
-import advancedjavacalculator.Type.Obj;
-
 public class AdvancedCalculator {
 
 	public static void main(String[] args) throws Exception {
-		if (args.length == 0) {
-			repl();
-		}
+		if (args.length == 0 || args[0].equals("repl")) {
+			repl((args.length == 2) ? Paths.get(args[1]) : null);
+		} else if (args[0].equals("run")) {
+			if (args.length != 2) {
+				return;
+			}
+
+			run(args[1]);
+		} else if (args[0].equals("client")) {
+			if (args.length < 2) {
+				return;
+			}
+
+			System.exit(Client.run(Paths.get(args[1]), Arrays.asList(args).subList(2, args.length)));
+		} else if (args[0].equals("daemon")) {
+			if (args.length != 2) {
+				return;
+			}
 
-		if (args[0].equals("repl")) {
-			repl();
+			daemon(Paths.get(args[1]));
 		} else if (args[0].equals("irc")) {
-			if (args.length != 5) {
+			if (args.length != 5 && args.length != 6) {
 				return;
 			}
 
-			irc(args[1], Integer.parseInt(args[2]), args[3], args[4]);
+			irc(args[1], Integer.parseInt(args[2]), args[3], args[4], (args.length == 6) ? Paths
+					.get(args[5]) : null);
 		}
 	}
 
-	public static void irc(String server, int port, String name, final String channelToConnect)
-			throws IOException {
+	/**
+	 * @param snapshots the directory the users' sessions are saved to and
+	 *            restored from, or null to keep them only while running
+	 */
+	public static void irc(String server, int port, String name, final String channelToConnect,
+			Path snapshots) throws IOException {
 		Socket socket = new Socket(server, port);
 		final PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
 		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-		final Interpreter interpreter = new Interpreter();
+		Interpreter template = new Interpreter();
+		template.setBudget(new Budget(10000000, 100000, 100000, 1000000));
+		final SessionManager sessions = new SessionManager(template, 10000, 1L, TimeUnit.HOURS,
+				256, 1 << 20);
+		if (snapshots != null) {
+			Files.createDirectories(snapshots);
+			sessions.setSnapshotDirectory(snapshots);
+		}
+		RequestExecutor executor = new RequestExecutor(Runtime.getRuntime().availableProcessors(),
+				64, 2, 10L, TimeUnit.SECONDS);
 
 		out.printf("NICK %s\n", name);
 		out.printf("USER %s %s foobar :%s\n", name, server, name);
@@ -65,48 +93,83 @@ public class AdvancedCalculator {
 					msg = msg.substring(1, msg.length());
 					final String inputMsg = msg;
 
-					new Thread(new Runnable() {
-						public void run() {
-							ExecutorService executor = Executors.newSingleThreadExecutor();
-							String ret = null;
-
-							try {
-								ret = executor
-										.invokeAll(
-												Arrays.asList(new InterpretTask(inputMsg,
-														interpreter)), 10L, TimeUnit.SECONDS)
-										.get(0).get();
-							} catch (Exception e) {
-								out.printf("PRIVMSG %s :%s\n", channelToConnect, String.format(
-										"Error -> %s\n", "Calculation took longer than 10 seconds"));
-								return;
-							}
-
-							executor.shutdownNow();
-
-							if (ret.length() > 80 && !ret.startsWith("Error")) {
-								ret = ret.substring(0, 81) + "...";
-							}
-							out.printf("PRIVMSG %s :%s\n", channelToConnect, ret);
-						}
-					}).start();
+					String user = input.substring(1, Math.max(1, input.indexOf('!')));
+					final long received = System.nanoTime();
+					executor.submit(user, new InterpretTask(inputMsg, sessions.get(user)),
+							new RequestExecutor.Callback() {
+								public void done(String ret) {
+									Stats.IRC.record(System.nanoTime() - received);
+									if (ret == null) {
+										return;
+									}
+									if (ret.length() > 80 && !ret.startsWith("Error")) {
+										ret = ret.substring(0, 81) + "...";
+									}
+									out.printf("PRIVMSG %s :%s\n", channelToConnect, ret);
+								}
+							});
 				}
 			}
 		}
 
+		executor.shutdown();
+		sessions.saveAll();
 		out.close();
 		in.close();
 		socket.close();
 	}
 
-	public static void repl() {
+	/**
+	 * Keeps a warmed up calculator running for {@link Client}s until the
+	 * process is stopped, see {@link Daemon}.
+	 */
+	public static void daemon(Path socket) throws IOException {
+		final Daemon daemon = new Daemon(socket, 64, new Budget(10000000, 100000, 100000, 1000000),
+				10L, TimeUnit.SECONDS);
+		daemon.warmUp();
+		daemon.bind();
+		Runtime.getRuntime().addShutdownHook(new Thread(daemon::close));
+		System.out.printf("Listening on %s%n", socket);
+		daemon.run();
+	}
+
+	/**
+	 * Runs a script file, or standard input when the path is "-", printing
+	 * each result as it is evaluated.
+	 */
+	public static void run(String path) throws IOException {
+		BufferedReader in = path.equals("-")
+				? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), 1 << 16)
+				: Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8);
+		PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out,
+				StandardCharsets.UTF_8), 1 << 16));
+		try {
+			new ScriptRunner(new Interpreter()).run(in, out);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads and evaluates lines from the terminal until -q. At the terminal
+	 * there are also -save file and -load file, which save the variables and
+	 * functions to a {@link Snapshot} and restore them from one.
+	 *
+	 * @param session a snapshot that is restored, if it exists, and saved
+	 *            again at -q, or null
+	 */
+	public static void repl(Path session) {
 		Scanner in = new Scanner(System.in);
 		Interpreter interpreter = new Interpreter();
+		if (session != null && Files.exists(session)) {
+			System.out.println(snapshot("-load " + session, interpreter));
+		}
 
 		while (true) {
 			System.out.print("> ");
 			String input = in.nextLine();
-			String out = new InterpretTask(input, interpreter).call();
+			String out = (input.startsWith("-save ") || input.startsWith("-load ")) ? snapshot(
+					input, interpreter) : new InterpretTask(input, interpreter).call();
 			if (out == null) {
 				break;
 			}
@@ -115,54 +178,30 @@ public class AdvancedCalculator {
 			}
 		}
 
-		in.close();
-	}
-
-}
-
-class InterpretTask implements Callable<String> {
-
-	private String input;
-	private Interpreter interpreter;
-
-	public InterpretTask(String input, Interpreter interpreter) {
-		this.input = input;
-		this.interpreter = interpreter;
-	}
-
-	@Override
-	public String call() {
-		if (input.equals("-q")) {
-			return null;
-		} else if (input.equals("-r")) {
-			interpreter.getScope().getVariables().clear();
-			return "";
-		} else if (input.startsWith("-p")) {
-			if (input.contains(" ")) {
-				int prec = Integer.parseInt(input.split(" ")[1]);
-				interpreter.setMathContext(new MathContext(prec));
-				return "";
-			} else {
-				return String.format("%d", interpreter.getMathContext().getPrecision());
+		if (session != null) {
+			String out = snapshot("-save " + session, interpreter);
+			if (!out.isEmpty()) {
+				System.out.println(out);
 			}
 		}
+		in.close();
+	}
 
+	private static String snapshot(String input, Interpreter interpreter) {
+		Path path = Paths.get(input.substring(6).trim());
 		try {
-			Parser parser = new CalcParser(Lexer.doString(input));
-			Expr expr;
-
-			while ((expr = parser.parseExpr()) != null) {
-				Obj ret = interpreter.interpretExpr(expr, interpreter.getScope());
-				if (ret != null) {
-					return ret.toString();
-				}
-				parser.consumeEndOfLine();
+			if (input.startsWith("-save")) {
+				interpreter.save(path);
+				return "";
 			}
-		} catch (Exception e) {
+			Snapshot snapshot = Snapshot.open(path);
+			interpreter.restore(snapshot);
+			return String.format("Restored %d variables and functions", snapshot.size());
+		} catch (NoSuchFileException e) {
+			return String.format("Error -> No such file %s", path);
+		} catch (IOException | CalcException e) {
 			return String.format("Error -> %s", e.getMessage());
 		}
-
-		return null;
 	}
 
 }
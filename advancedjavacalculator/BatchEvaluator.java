@@ -0,0 +1,193 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import advancedjavacalculator.Interpreter.Scope;
+import advancedjavacalculator.Type.DoubleNum;
+import advancedjavacalculator.Type.Func;
+import advancedjavacalculator.Type.Num;
+import advancedjavacalculator.Type.Obj;
+import advancedjavacalculator.Type.RealNum;
+
+/**
+ * Evaluates one function over columns of inputs: row i of the output is the
+ * function applied to row i of every column. Rows are evaluated in a tight
+ * loop that reuses a single argument frame, and batches larger than
+ * {@link #DEFAULT_THRESHOLD} rows are split across a {@link ForkJoinPool}.
+ * <p>
+ * The scope must not be modified while a batch is running.
+ */
+public class BatchEvaluator {
+
+	public static final int DEFAULT_THRESHOLD = 4096;
+
+	private final Interpreter interpreter;
+	private final ForkJoinPool pool;
+	private final int threshold;
+
+	public BatchEvaluator(Interpreter interpreter) {
+		this(interpreter, ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+	}
+
+	public BatchEvaluator(Interpreter interpreter, ForkJoinPool pool, int threshold) {
+		this.interpreter = interpreter;
+		this.pool = pool;
+		this.threshold = Math.max(1, threshold);
+	}
+
+	/**
+	 * Evaluates an expression with the given names bound to the columns.
+	 */
+	public double[] evaluate(Expr expr, List<String> names, double[]... columns)
+			throws CalcException {
+		return evaluate(new Func(names, expr, interpreter.optimize(expr, names)), columns);
+	}
+
+	public BigDecimal[] evaluate(Expr expr, List<String> names, BigDecimal[]... columns)
+			throws CalcException {
+		return evaluate(new Func(names, expr, interpreter.optimize(expr, names)), columns);
+	}
+
+	/**
+	 * Evaluates on primitive doubles, whatever the interpreter's number mode.
+	 */
+	public double[] evaluate(final Func func, final double[]... columns) throws CalcException {
+		final int rows = checkColumns(func, columns);
+		final double[] out = new double[rows];
+		final DoubleEvaluator evaluator = new DoubleEvaluator(interpreter);
+		final Scope scope = interpreter.getScope();
+
+		run(rows, (from, to) -> {
+			double[] frame = new double[func.getFrameSize()];
+			for (int row = from; row < to; row++) {
+				for (int i = 0; i < columns.length; i++) {
+					frame[i] = columns[i][row];
+				}
+				out[row] = evaluator.eval(func.getCode(), scope, frame);
+			}
+		});
+
+		return out;
+	}
+
+	/**
+	 * Evaluates in the interpreter's number mode and MathContext.
+	 */
+	public BigDecimal[] evaluate(final Func func, final BigDecimal[]... columns)
+			throws CalcException {
+		final int rows = checkColumns(func, columns);
+		final BigDecimal[] out = new BigDecimal[rows];
+		final Scope scope = interpreter.getScope();
+
+		run(rows, (from, to) -> {
+			Obj[] frame = new Obj[columns.length];
+			for (int row = from; row < to; row++) {
+				for (int i = 0; i < frame.length; i++) {
+					frame[i] = new RealNum(columns[i][row]);
+				}
+				out[row] = toBigDecimal(interpreter.callFunction("batch", func, scope, frame));
+			}
+		});
+
+		return out;
+	}
+
+	private void run(int count, Rows rows) throws CalcException {
+		if (count <= threshold) {
+			rows.evaluate(0, count);
+			return;
+		}
+
+		try {
+			pool.invoke(new Chunk(rows, 0, count));
+		} catch (ChunkException e) {
+			for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+				if (cause instanceof CalcException) {
+					throw (CalcException) cause;
+				}
+			}
+			throw e;
+		}
+	}
+
+	private static int checkColumns(Func func, Object[] columns) throws CalcException {
+		if (func.getArguments().size() != columns.length) {
+			throw new CalcException("Interpreter",
+					"Number of columns given doesn't match expected number");
+		}
+
+		int rows = columns.length == 0 ? 0 : Array.getLength(columns[0]);
+		for (Object column : columns) {
+			if (Array.getLength(column) != rows) {
+				throw new CalcException("Interpreter", "All columns must have the same length");
+			}
+		}
+		return rows;
+	}
+
+	private static BigDecimal toBigDecimal(Num num) throws CalcException {
+		switch (num.getType()) {
+			case RealNum:
+				return ((RealNum) num).getNumber();
+			case DoubleNum:
+				return BigDecimal.valueOf(((DoubleNum) num).getNumber());
+			default:
+				throw new CalcException("Interpreter", "Invalid result type '%s'", num.getType());
+		}
+	}
+
+	private interface Rows {
+		void evaluate(int from, int to) throws CalcException;
+	}
+
+	private class Chunk extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Rows rows;
+		private final int from, to;
+
+		Chunk(Rows rows, int from, int to) {
+			this.rows = rows;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= threshold) {
+				try {
+					rows.evaluate(from, to);
+				} catch (CalcException e) {
+					throw new ChunkException(e);
+				}
+				return;
+			}
+
+			int mid = (from + to) >>> 1;
+			invokeAll(new Chunk(rows, from, mid), new Chunk(rows, mid, to));
+		}
+
+	}
+
+	private static class ChunkException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		ChunkException(Throwable cause) {
+			super(cause);
+		}
+
+	}
+
+}
@@ -0,0 +1,544 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Arbitrary precision functions on BigDecimal.
+ *
+ * Roots start from a double estimate, which is good to about 15 digits, and
+ * every Newton step doubles the working precision up to the target, so most
+ * steps run at a fraction of it.
+ *
+ * Powers with whole exponents are done by squaring, anything else as
+ * exp(y ln x). Logarithms of recently used bases are cached.
+ *
+ * The series for pi, e and the logarithms of 2 and 10 are here as well, but
+ * go through {@link Constant}, which keeps their results.
+ */
+public final class BigMath {
+
+	private BigMath() {}
+
+	// Extra digits carried through a calculation and dropped at the end.
+	private static final int GUARD_DIGITS = 5;
+
+	// Digits a double estimate is trusted to.
+	private static final int SEED_DIGITS = 14;
+
+	private static final BigDecimal HALF = new BigDecimal("0.5");
+	private static final BigDecimal TWO = BigDecimal.valueOf(2);
+
+	private static final double LN10 = Math.log(10);
+	private static final double LOG2_10 = Math.log(10) / Math.log(2);
+
+	// Results beyond this many decimal digits can't be represented.
+	private static final double MAX_EXPONENT = 999999999;
+
+	// 640320^3 / 24, from the Chudnovsky series
+	private static final BigInteger CHUDNOVSKY_C3_24 = BigInteger.valueOf(10939058860032000L);
+
+	private static final int LOG_CACHE_CAPACITY = 64;
+
+	private static final Map<BigDecimal, BigDecimal> logs = new LinkedHashMap<BigDecimal, BigDecimal>(
+			16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<BigDecimal, BigDecimal> eldest) {
+			return size() > LOG_CACHE_CAPACITY;
+		}
+
+	};
+
+	public static BigDecimal sqrt(BigDecimal x, MathContext mc) throws CalcException {
+		int precision = precision(mc);
+		if (x.signum() < 0) {
+			throw new CalcException("Interpreter", "Square root of a negative number");
+		} else if (x.signum() == 0) {
+			return BigDecimal.ZERO;
+		}
+
+		// Newton: (y + x / y) / 2
+		int target = precision + GUARD_DIGITS;
+		BigDecimal y = seed(x, 2);
+		int digits = SEED_DIGITS;
+		for (;;) {
+			Interpreter.checkCancelled();
+			boolean last = digits >= target;
+			digits = Math.min(digits * 2, target);
+			MathContext m = new MathContext(digits, RoundingMode.HALF_EVEN);
+
+			y = y.add(x.divide(y, m), m).multiply(HALF, m);
+			if (last) {
+				break;
+			}
+		}
+
+		return y.round(mc);
+	}
+
+	/**
+	 * Halley's method, which triples the correct digits every step instead of
+	 * doubling them.
+	 */
+	public static BigDecimal cbrt(BigDecimal x, MathContext mc) throws CalcException {
+		int precision = precision(mc);
+		if (x.signum() < 0) {
+			return cbrt(x.negate(), mc).negate();
+		} else if (x.signum() == 0) {
+			return BigDecimal.ZERO;
+		}
+
+		int target = precision + GUARD_DIGITS;
+		BigDecimal y = seed(x, 3);
+		int digits = SEED_DIGITS;
+		for (;;) {
+			Interpreter.checkCancelled();
+			boolean last = digits >= target;
+			digits = Math.min(digits * 3, target);
+			MathContext m = new MathContext(digits, RoundingMode.HALF_EVEN);
+
+			// y * (y^3 + 2x) / (2y^3 + x)
+			BigDecimal y3 = y.multiply(y, m).multiply(y, m);
+			y = y.multiply(y3.add(x.multiply(TWO), m), m).divide(y3.multiply(TWO).add(x, m), m);
+			if (last) {
+				break;
+			}
+		}
+
+		return y.round(mc);
+	}
+
+	/**
+	 * The root'th root of x. Even roots of negative numbers are an error and
+	 * negative roots give the reciprocal.
+	 */
+	public static BigDecimal root(int root, BigDecimal x, MathContext mc) throws CalcException {
+		int precision = precision(mc);
+		if (root == 0) {
+			throw new CalcException("Interpreter", "Zeroth root");
+		} else if (root < 0) {
+			if (x.signum() == 0) {
+				throw new CalcException("Interpreter", "Division by zero");
+			}
+			MathContext m = new MathContext(precision + GUARD_DIGITS, mc.getRoundingMode());
+			return BigDecimal.ONE.divide(root(-root, x, m), mc);
+		} else if (root == 1) {
+			return x.round(mc);
+		} else if (root == 2) {
+			return sqrt(x, mc);
+		} else if (root == 3) {
+			return cbrt(x, mc);
+		}
+
+		if (x.signum() < 0) {
+			if ((root & 1) == 0) {
+				throw new CalcException("Interpreter", "Even root of a negative number");
+			}
+			return root(root, x.negate(), mc).negate();
+		} else if (x.signum() == 0) {
+			return BigDecimal.ZERO;
+		}
+
+		// Newton: y - (y^r - x) / (r y^(r-1)) = ((r-1) y + x / y^(r-1)) / r
+		BigDecimal r = BigDecimal.valueOf(root);
+		BigDecimal r1 = BigDecimal.valueOf(root - 1);
+		int target = precision + GUARD_DIGITS;
+		BigDecimal y = seed(x, root);
+		int digits = SEED_DIGITS;
+		for (;;) {
+			Interpreter.checkCancelled();
+			boolean last = digits >= target;
+			digits = Math.min(digits * 2, target);
+			MathContext m = new MathContext(digits, RoundingMode.HALF_EVEN);
+
+			BigDecimal yr1 = y.pow(root - 1, m);
+			y = y.multiply(r1, m).add(x.divide(yr1, m), m).divide(r, m);
+			if (last) {
+				break;
+			}
+		}
+
+		return y.round(mc);
+	}
+
+	/**
+	 * x to the power y. Whole exponents are exact as long as the result fits
+	 * the precision.
+	 */
+	public static BigDecimal pow(BigDecimal x, BigDecimal y, MathContext mc) throws CalcException {
+		if (y.signum() == 0) {
+			return BigDecimal.ONE;
+		} else if (x.signum() == 0) {
+			if (y.signum() < 0) {
+				throw new CalcException("Interpreter", "Division by zero");
+			}
+			return BigDecimal.ZERO;
+		}
+
+		boolean whole = y.stripTrailingZeros().scale() <= 0;
+		if (whole && y.compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) <= 0
+				&& y.compareTo(BigDecimal.valueOf(-Long.MAX_VALUE)) >= 0) {
+			return pow(x, y.longValueExact(), mc);
+		}
+
+		BigDecimal sign = BigDecimal.ONE;
+		if (x.signum() < 0) {
+			if (!whole) {
+				throw new CalcException("Interpreter",
+						"A negative number to a fractional power is not real");
+			}
+			if (y.toBigInteger().testBit(0)) {
+				sign = sign.negate();
+			}
+			x = x.negate();
+		}
+
+		int precision = precision(mc);
+
+		// exp magnifies the absolute error of y ln x into the relative error
+		// of the result, so y ln x needs a digit for every digit of its
+		// whole part.
+		double magnitude = Math.abs(y.doubleValue() * log10(x) * LN10);
+		if (magnitude > MAX_EXPONENT * LN10) {
+			throw new CalcException("Interpreter", "The result of %s ^ %s is out of range", x, y);
+		}
+		int digits = precision + GUARD_DIGITS + (magnitude > 1 ? (int) Math.log10(magnitude) + 1 : 0);
+		MathContext m = new MathContext(digits, RoundingMode.HALF_EVEN);
+
+		return exp(y.multiply(ln(x, m), m), mc).multiply(sign);
+	}
+
+	/**
+	 * x to a whole power by squaring. Every multiplication rounds, so the
+	 * working precision gets a digit for every digit of n.
+	 */
+	public static BigDecimal pow(BigDecimal x, long n, MathContext mc) throws CalcException {
+		if (n < 0) {
+			if (x.signum() == 0) {
+				throw new CalcException("Interpreter", "Division by zero");
+			}
+			MathContext m = (mc.getPrecision() == 0) ? mc : new MathContext(mc.getPrecision()
+					+ GUARD_DIGITS, RoundingMode.HALF_EVEN);
+			return BigDecimal.ONE.divide(pow(x, -n, m), mc);
+		}
+
+		if (mc.getPrecision() == 0 && n > Integer.MAX_VALUE) {
+			throw new CalcException("Interpreter", "The exponent %d is too large", n);
+		}
+		if (Math.abs(n * log10(x.abs())) > MAX_EXPONENT) {
+			throw new CalcException("Interpreter", "The result of %s ^ %d is out of range", x, n);
+		}
+
+		MathContext m = (mc.getPrecision() == 0) ? mc : new MathContext(mc.getPrecision()
+				+ Long.toString(n).length() + 2, RoundingMode.HALF_EVEN);
+
+		BigDecimal result = BigDecimal.ONE;
+		BigDecimal base = x;
+		while (n > 0) {
+			Interpreter.checkCancelled();
+			if ((n & 1) != 0) {
+				result = result.multiply(base, m);
+			}
+			n >>= 1;
+			if (n > 0) {
+				base = base.multiply(base, m);
+			}
+		}
+
+		return result.round(mc);
+	}
+
+	/**
+	 * e to the power x. x is reduced by a multiple of ln 10, which goes into
+	 * the exponent exactly, and then halved k times so that the Taylor series
+	 * converges quickly. Squaring the sum k times undoes the halving.
+	 *
+	 * The series and the squarings run on binary fixed point BigIntegers.
+	 * Rounding a BigDecimal back to its precision after every operation would
+	 * cost a division by a power of ten each time.
+	 */
+	public static BigDecimal exp(BigDecimal x, MathContext mc) throws CalcException {
+		int precision = precision(mc);
+		if (x.signum() == 0) {
+			return BigDecimal.ONE;
+		}
+
+		double estimate = x.doubleValue() / LN10;
+		if (Math.abs(estimate) > MAX_EXPONENT) {
+			throw new CalcException("Interpreter", "The result of exp(%s) is out of range", x);
+		}
+		long tens = Math.round(estimate);
+
+		// Each squaring doubles the relative error, so k squarings need k
+		// more bits.
+		int k = (int) Math.sqrt(precision);
+		int digits = precision + GUARD_DIGITS;
+		int bits = (int) Math.ceil(digits * LOG2_10) + k + 16;
+
+		BigDecimal r = x;
+		if (tens != 0) {
+			int extra = Long.toString(Math.abs(tens)).length();
+			MathContext wide = new MathContext(digits + k / 3 + extra, RoundingMode.HALF_EVEN);
+			r = x.subtract(Constant.LN10.getValue(wide).multiply(BigDecimal.valueOf(tens), wide),
+					wide);
+		}
+
+		// r / 2^k in fixed point with the given number of fraction bits
+		BigInteger one = BigInteger.ONE.shiftLeft(bits);
+		BigInteger fixed = r.multiply(new BigDecimal(BigInteger.ONE.shiftLeft(bits - k)))
+				.setScale(0, RoundingMode.HALF_EVEN).unscaledValue();
+
+		// 1 + r + r^2/2! + ...
+		BigInteger sum = one;
+		BigInteger term = one;
+		for (int i = 1;; i++) {
+			if ((i & 15) == 0) {
+				Interpreter.checkCancelled();
+			}
+			term = term.multiply(fixed).shiftRight(bits).divide(BigInteger.valueOf(i));
+			if (term.signum() == 0) {
+				break;
+			}
+			sum = sum.add(term);
+		}
+
+		for (int i = 0; i < k; i++) {
+			sum = sum.multiply(sum).shiftRight(bits);
+		}
+
+		return new BigDecimal(sum).divide(new BigDecimal(one), mc).scaleByPowerOfTen((int) tens);
+	}
+
+	/**
+	 * The natural logarithm of a positive x. Results for recently used x are
+	 * kept and rounded when a lower precision is asked for.
+	 */
+	public static BigDecimal ln(BigDecimal x, MathContext mc) throws CalcException {
+		int precision = precision(mc);
+		if (x.signum() <= 0) {
+			throw new CalcException("Interpreter", "The logarithm of %s is not real", x);
+		} else if (x.compareTo(BigDecimal.ONE) == 0) {
+			return BigDecimal.ZERO;
+		}
+
+		BigDecimal cached;
+		synchronized (logs) {
+			cached = logs.get(x);
+		}
+		if (cached != null && cached.precision() >= precision + GUARD_DIGITS) {
+			return cached.round(mc);
+		}
+
+		// Outside [0.1, 10) split off the power of ten: ln x = ln m + e ln 10
+		int e = x.precision() - x.scale() - 1;
+		if (e == -1) {
+			e = 0;
+		}
+		BigDecimal m = x.movePointLeft(e);
+
+		// Close to 1 the result is small, and its leading digits cancel.
+		int digits = precision + GUARD_DIGITS;
+		BigDecimal d = m.subtract(BigDecimal.ONE);
+		if (e == 0 && d.signum() != 0) {
+			digits += Math.max(0, -(d.precision() - d.scale() - 1));
+		}
+
+		// Halley on exp(y) = m: y + 2 (m - exp(y)) / (m + exp(y)), which
+		// triples the correct digits every step.
+		BigDecimal y = new BigDecimal(Math.log(m.doubleValue()));
+		int current = SEED_DIGITS;
+		for (;;) {
+			Interpreter.checkCancelled();
+			boolean last = current >= digits;
+			current = Math.min(current * 3, digits);
+			MathContext w = new MathContext(current, RoundingMode.HALF_EVEN);
+
+			BigDecimal ey = exp(y, w);
+			y = y.add(TWO.multiply(m.subtract(ey, w)).divide(m.add(ey, w), w), w);
+			if (last) {
+				break;
+			}
+		}
+
+		if (e != 0) {
+			MathContext w = new MathContext(digits + Integer.toString(Math.abs(e)).length(),
+					RoundingMode.HALF_EVEN);
+			y = y.add(Constant.LN10.getValue(w).multiply(BigDecimal.valueOf(e), w), w);
+		}
+
+		y = y.round(new MathContext(precision + GUARD_DIGITS, RoundingMode.HALF_EVEN));
+		synchronized (logs) {
+			logs.put(x, y);
+		}
+		return y.round(mc);
+	}
+
+	/**
+	 * pi by the Chudnovsky series, 1 / pi = 12 sum (-1)^k (6k)! (13591409 +
+	 * 545140134 k) / ((3k)! (k!)^3 640320^(3k + 3/2)), which gives about 14
+	 * digits a term. The terms are summed exactly as one fraction by binary
+	 * splitting, so there is a single division at the end. Use
+	 * {@link Constant#PI}, which keeps the result.
+	 */
+	public static BigDecimal pi(MathContext mc) throws CalcException {
+		int digits = precision(mc) + GUARD_DIGITS;
+		long terms = (long) (digits / 14.18) + 2;
+		MathContext m = new MathContext(digits, RoundingMode.HALF_EVEN);
+
+		BigInteger[] pqt = chudnovsky(0, terms);
+		BigDecimal sqrt = sqrt(BigDecimal.valueOf(10005), m);
+		return new BigDecimal(pqt[1].multiply(BigInteger.valueOf(426880))).multiply(sqrt, m)
+				.divide(new BigDecimal(pqt[2]), mc);
+	}
+
+	/**
+	 * P, Q and T of the terms from a to b, where T / Q is their sum without
+	 * the constant factors.
+	 */
+	private static BigInteger[] chudnovsky(long a, long b) throws CalcException {
+		if (b - a == 1) {
+			BigInteger p, q;
+			if (a == 0) {
+				p = q = BigInteger.ONE;
+			} else {
+				p = BigInteger.valueOf(6 * a - 5).multiply(BigInteger.valueOf(2 * a - 1))
+						.multiply(BigInteger.valueOf(6 * a - 1));
+				q = BigInteger.valueOf(a).pow(3).multiply(CHUDNOVSKY_C3_24);
+			}
+			BigInteger t = p.multiply(BigInteger.valueOf(13591409 + 545140134 * a));
+			return new BigInteger[] { p, q, (a & 1) == 0 ? t : t.negate() };
+		}
+
+		Interpreter.checkCancelled();
+		long m = (a + b) / 2;
+		BigInteger[] left = chudnovsky(a, m);
+		BigInteger[] right = chudnovsky(m, b);
+		return new BigInteger[] { left[0].multiply(right[0]), left[1].multiply(right[1]),
+				left[2].multiply(right[1]).add(left[0].multiply(right[2])) };
+	}
+
+	/**
+	 * e = 1 + 1/1! + 1/2! + ..., summed by binary splitting. Use
+	 * {@link Constant#E}, which keeps the result.
+	 */
+	public static BigDecimal e(MathContext mc) throws CalcException {
+		// Enough terms for the last one to be below the precision.
+		double digits = precision(mc) + GUARD_DIGITS;
+		long terms = 1;
+		for (double log = 0; log < digits; log += Math.log10(++terms)) {
+		}
+
+		BigInteger[] pq = factorials(0, terms);
+		return new BigDecimal(pq[0].add(pq[1])).divide(new BigDecimal(pq[1]), mc);
+	}
+
+	/**
+	 * P and Q with P / Q = 1 / (a + 1) + 1 / ((a + 1) (a + 2)) + ... + 1 / ((a +
+	 * 1) ... b) and Q = (a + 1) ... b.
+	 */
+	private static BigInteger[] factorials(long a, long b) throws CalcException {
+		if (b - a == 1) {
+			return new BigInteger[] { BigInteger.ONE, BigInteger.valueOf(b) };
+		}
+
+		Interpreter.checkCancelled();
+		long m = (a + b) / 2;
+		BigInteger[] left = factorials(a, m);
+		BigInteger[] right = factorials(m, b);
+		return new BigInteger[] { left[0].multiply(right[1]).add(right[0]),
+				left[1].multiply(right[1]) };
+	}
+
+	/**
+	 * ln 2 = 18 atanh(1/26) - 2 atanh(1/4801) + 8 atanh(1/8749). Use
+	 * {@link Constant#LN2}, which keeps the result.
+	 */
+	public static BigDecimal ln2(MathContext mc) throws CalcException {
+		MathContext m = new MathContext(precision(mc) + GUARD_DIGITS, RoundingMode.HALF_EVEN);
+		return ln2Terms(m).round(mc);
+	}
+
+	/**
+	 * ln 10 = 3 ln 2 + ln 1.25 = 3 ln 2 + 2 atanh(1/9). Use
+	 * {@link Constant#LN10}, which keeps the result.
+	 */
+	public static BigDecimal ln10(MathContext mc) throws CalcException {
+		MathContext m = new MathContext(precision(mc) + GUARD_DIGITS, RoundingMode.HALF_EVEN);
+		return ln2Terms(m).multiply(BigDecimal.valueOf(3)).add(
+				atanhInverse(9, m).multiply(TWO), mc);
+	}
+
+	private static BigDecimal ln2Terms(MathContext mc) throws CalcException {
+		return atanhInverse(26, mc).multiply(BigDecimal.valueOf(18)).subtract(
+				atanhInverse(4801, mc).multiply(TWO)).add(
+				atanhInverse(8749, mc).multiply(BigDecimal.valueOf(8)), mc);
+	}
+
+	/**
+	 * atanh(1/q) = 1/q + 1/(3 q^3) + 1/(5 q^5) + ..., summed by binary
+	 * splitting.
+	 */
+	private static BigDecimal atanhInverse(int q, MathContext mc) throws CalcException {
+		long terms = (long) (mc.getPrecision() / (2 * Math.log10(q))) + 2;
+		BigInteger[] qbt = atanhTerms(BigInteger.valueOf((long) q * q), 0, terms);
+		return new BigDecimal(qbt[2]).divide(
+				new BigDecimal(qbt[0].multiply(qbt[1]).multiply(BigInteger.valueOf(q))), mc);
+	}
+
+	/**
+	 * Q, B and T of the terms from a to b, where T / (B Q) is their sum times
+	 * q. Term k is 1 / ((2k + 1) q2^k).
+	 */
+	private static BigInteger[] atanhTerms(BigInteger q2, long a, long b) throws CalcException {
+		if (b - a == 1) {
+			return new BigInteger[] { (a == 0) ? BigInteger.ONE : q2,
+					BigInteger.valueOf(2 * a + 1), BigInteger.ONE };
+		}
+
+		Interpreter.checkCancelled();
+		long m = (a + b) / 2;
+		BigInteger[] left = atanhTerms(q2, a, m);
+		BigInteger[] right = atanhTerms(q2, m, b);
+		return new BigInteger[] { left[0].multiply(right[0]), left[1].multiply(right[1]),
+				right[1].multiply(right[0]).multiply(left[2]).add(left[1].multiply(right[2])) };
+	}
+
+	/**
+	 * log10 of a positive x as a double, for x of any size.
+	 */
+	static double log10(BigDecimal x) {
+		int e = x.precision() - x.scale() - 1;
+		return Math.log10(x.movePointLeft(e).doubleValue()) + e;
+	}
+
+	/**
+	 * A double estimate of the root'th root of a positive x. It works through
+	 * log10 so that x can be far outside the range of a double.
+	 */
+	private static BigDecimal seed(BigDecimal x, int root) {
+		double log = log10(x) / root;
+		double whole = Math.floor(log);
+		return new BigDecimal(Math.pow(10, log - whole)).scaleByPowerOfTen((int) whole);
+	}
+
+	private static int precision(MathContext mc) throws CalcException {
+		if (mc.getPrecision() == 0) {
+			throw new CalcException("Interpreter", "The precision must be limited, see -p");
+		}
+		return mc.getPrecision();
+	}
+
+}
@@ -0,0 +1,395 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import advancedjavacalculator.Expr.AssignExpr;
+import advancedjavacalculator.Expr.BinaryOpExpr;
+import advancedjavacalculator.Expr.ConstantExpr;
+import advancedjavacalculator.Expr.GroupExpr;
+import advancedjavacalculator.Expr.LiteralExpr;
+import advancedjavacalculator.Interpreter.Scope;
+import advancedjavacalculator.Token.TokenType;
+import advancedjavacalculator.Type.DoubleNum;
+import advancedjavacalculator.Type.Num;
+import advancedjavacalculator.Type.RealNum;
+
+/**
+ * Limits on the work one statement may do: how many steps it takes, how many
+ * digits any number along the way may have, how far its decimal point may be
+ * shifted (the size of its scale) and how large an exponent pow accepts.
+ *
+ * A statement over its budget stops with an error at the same point every
+ * time, however busy the machine is. The steps are the same ones that check
+ * for cancellation, so they cover the interpreter, function calls and the
+ * loops in {@link BigMath}. The sizes are checked by {@link Type.RealNum}
+ * before each operation, from the sizes of its operands, so an oversized
+ * result is never computed. Before a statement starts, its literals are run
+ * through the same estimate, which turns down things like 9^9^9^9 without
+ * doing any arithmetic at all.
+ */
+public final class Budget {
+
+	public static final Budget UNLIMITED = new Budget(Long.MAX_VALUE, Integer.MAX_VALUE,
+			Integer.MAX_VALUE, Long.MAX_VALUE);
+
+	/**
+	 * The budget and the steps taken so far of the statement running on a
+	 * thread, and on the threads it forked work to.
+	 */
+	static final class Meter {
+
+		private final Budget budget;
+		private final AtomicLong steps = new AtomicLong();
+
+		private Meter(Budget budget) {
+			this.budget = budget;
+		}
+
+	}
+
+	private static final ThreadLocal<Meter> meters = new ThreadLocal<Meter>();
+
+	// How many threads are running a statement on a budget. While there are
+	// none, which is always the case without budgets, nothing is looked up.
+	private static final AtomicInteger metering = new AtomicInteger();
+
+	private final long maxSteps;
+	private final int maxDigits;
+	private final int maxScale;
+	private final long maxExponent;
+
+	/**
+	 * @param maxSteps how many steps a statement may take
+	 * @param maxDigits how many digits any number may have, which also limits
+	 *            -p
+	 * @param maxScale how far from the units digit the last digit of a number
+	 *            may be, which in effect limits its size to 1e(maxScale) and
+	 *            1e(-maxScale)
+	 * @param maxExponent the largest exponent pow accepts
+	 */
+	public Budget(long maxSteps, int maxDigits, int maxScale, long maxExponent) {
+		this.maxSteps = maxSteps;
+		this.maxDigits = maxDigits;
+		this.maxScale = maxScale;
+		this.maxExponent = maxExponent;
+	}
+
+	public long getMaxSteps() {
+		return maxSteps;
+	}
+
+	public int getMaxDigits() {
+		return maxDigits;
+	}
+
+	public int getMaxScale() {
+		return maxScale;
+	}
+
+	public long getMaxExponent() {
+		return maxExponent;
+	}
+
+	/**
+	 * Starts counting the steps of a statement on this thread, unless a
+	 * statement is already running on it.
+	 *
+	 * @return whether {@link #end()} has to be called afterwards
+	 */
+	static boolean begin(Budget budget) {
+		if (budget == UNLIMITED || meters.get() != null) {
+			return false;
+		}
+		meters.set(new Meter(budget));
+		metering.incrementAndGet();
+		return true;
+	}
+
+	static void end() {
+		meters.remove();
+		metering.decrementAndGet();
+	}
+
+	/**
+	 * Returns the meter of the statement running on this thread, or null, to
+	 * hand it to another thread working on the same statement.
+	 */
+	static Meter getMeter() {
+		return meters.get();
+	}
+
+	/**
+	 * Counts what this thread does against meter, or against nothing if it is
+	 * null.
+	 *
+	 * @return the meter this thread had before
+	 */
+	static Meter setMeter(Meter meter) {
+		Meter previous = meters.get();
+		if (meter != previous) {
+			if (meter == null) {
+				meters.remove();
+				metering.decrementAndGet();
+			} else {
+				meters.set(meter);
+				if (previous == null) {
+					metering.incrementAndGet();
+				}
+			}
+		}
+		return previous;
+	}
+
+	private static Meter meter() {
+		return (metering.get() == 0) ? null : meters.get();
+	}
+
+	/**
+	 * Returns whether the statement running on this thread has a budget, so
+	 * the sizes of its operations need to be checked.
+	 */
+	static boolean isMetered() {
+		return meter() != null;
+	}
+
+	static void step() throws CalcException {
+		Meter meter = meter();
+		if (meter != null && meter.steps.incrementAndGet() > meter.budget.maxSteps) {
+			throw new CalcException("Interpreter", "The calculation took more than %d steps",
+					meter.budget.maxSteps);
+		}
+	}
+
+	/**
+	 * Checks the estimated size of a result against the budget of the running
+	 * statement.
+	 *
+	 * @param op what is being worked out, such as "a sum"
+	 * @param digits how many digits it will have at most
+	 * @param scale its scale, the negated exponent of its last digit
+	 */
+	static void checkSize(String op, long digits, long scale) throws CalcException {
+		Meter meter = meter();
+		if (meter != null) {
+			meter.budget.check(op, digits, scale);
+		}
+	}
+
+	/**
+	 * Checks x ^ y against the budget of the running statement.
+	 */
+	static void checkPow(BigDecimal x, BigDecimal y, MathContext mc) throws CalcException {
+		Meter meter = meter();
+		if (meter != null && x.signum() != 0) {
+			meter.budget.checkPow("a power", x.precision(), BigMath.log10(x.abs()), y
+					.doubleValue(), y.signum() == 0 || y.stripTrailingZeros().scale() <= 0, mc);
+		}
+	}
+
+	private void check(String op, double digits, double scale) throws CalcException {
+		if (digits > maxDigits) {
+			throw new CalcException("Interpreter",
+					"The result of %s would have %.0f digits, the limit is %d", op, digits,
+					maxDigits);
+		} else if (Math.abs(scale) > maxScale) {
+			throw new CalcException("Interpreter", "The result of %s is out of range", op);
+		}
+	}
+
+	/**
+	 * @param digits the digits of the base
+	 * @param log10 the log10 of the absolute value of the base
+	 * @return how many digits the power will have
+	 */
+	private double checkPow(String op, double digits, double log10, double y, boolean whole,
+			MathContext mc) throws CalcException {
+		if (Math.abs(y) > maxExponent) {
+			throw new CalcException("Interpreter", "The exponent of %s is above the limit of %d",
+					op, maxExponent);
+		}
+
+		// A rounded power has the digits of the MathContext, an exact one
+		// has a copy of the base's digits for every unit of the exponent.
+		double powDigits = (mc.getPrecision() > 0) ? mc.getPrecision() : whole ? Math.abs(y)
+				* digits : Double.POSITIVE_INFINITY;
+		check(op, powDigits, powDigits - Math.floor(y * log10) - 1);
+		return powDigits;
+	}
+
+	/**
+	 * Estimates the sizes along a statement from its literals and constants,
+	 * before any of it is evaluated. Parts that read variables or call
+	 * functions can't be estimated and are left to the checks as they run.
+	 */
+	void estimate(Expr expr, Scope scope, MathContext mc) throws CalcException {
+		if (this == UNLIMITED) {
+			return;
+		}
+
+		if (mc.getPrecision() > maxDigits) {
+			throw new CalcException("Interpreter", "The precision is limited to %d digits",
+					maxDigits);
+		}
+
+		if (expr instanceof AssignExpr) {
+			if (((AssignExpr) expr).getDef().getToken().getType() != TokenType.Ident) {
+				return;
+			}
+			expr = ((AssignExpr) expr).getVal();
+		}
+		new Estimate(scope, mc).eval(expr);
+	}
+
+	/**
+	 * The rough size of a value: its log10, its digits, and its value as a
+	 * double where that is needed for the exponent of a power.
+	 */
+	private final class Estimate {
+
+		private final Scope scope;
+		private final MathContext mc;
+		private double log10, digits, value;
+
+		private Estimate(Scope scope, MathContext mc) {
+			this.scope = scope;
+			this.mc = mc;
+		}
+
+		/**
+		 * @return false if the size isn't known
+		 */
+		private boolean eval(Expr expr) throws CalcException {
+			if (expr instanceof LiteralExpr) {
+				LiteralExpr literal = (LiteralExpr) expr;
+				if (literal.isNumber()) {
+					return set(expr, literal.getExactNumber());
+				}
+
+				Constant constant = scope.getConstantNoError(expr.getToken().getMatch());
+				if (constant == null) {
+					return false;
+				}
+				Num approximation = constant.getApproximation();
+				switch (approximation.getType()) {
+					case RealNum:
+						return set(expr, ((RealNum) approximation).getNumber());
+					case DoubleNum:
+						value = ((DoubleNum) approximation).getNumber();
+						log10 = Math.log10(Math.abs(value));
+						digits = mc.getPrecision();
+						return mc.getPrecision() > 0;
+					default:
+						return false;
+				}
+			} else if (expr instanceof ConstantExpr) {
+				return eval(((ConstantExpr) expr).getExpr());
+			} else if (expr instanceof GroupExpr) {
+				return eval(((GroupExpr) expr).getExpr());
+			} else if (!(expr instanceof BinaryOpExpr)) {
+				return false;
+			}
+
+			BinaryOpExpr binaryOp = (BinaryOpExpr) expr;
+			if (!eval(binaryOp.getLeftExpr())) {
+				return false;
+			}
+			double la = log10, da = digits, a = value;
+			if (!eval(binaryOp.getRightExpr())) {
+				return false;
+			}
+			double lb = log10, db = digits, b = value;
+
+			switch (expr.getToken().getType()) {
+				case Plus:
+				case Minus:
+					// The whole digits of the larger and the fraction digits
+					// of the longer one.
+					digits = Math.max(Math.floor(la), Math.floor(lb)) + 2
+							+ Math.max(da - Math.floor(la) - 1, db - Math.floor(lb) - 1);
+					value = (expr.getToken().getType() == TokenType.Plus) ? a + b : a - b;
+					if (!sum(la, lb, a, b, expr.getToken().getType() == TokenType.Plus)) {
+						return false;
+					}
+					break;
+				case Times:
+					log10 = la + lb;
+					digits = da + db;
+					value = a * b;
+					break;
+				case Divide:
+					log10 = la - lb;
+					digits = da + Math.ceil(10 * db / 3);
+					value = a / b;
+					break;
+				case Mod:
+					log10 = lb;
+					digits = Math.max(0, la - lb) + Math.max(da, db);
+					value = a % b;
+					break;
+				case Pow:
+					if (Double.isNaN(b)) {
+						return false;
+					}
+					digits = checkPow(expr.toString(), da, la, b, b == Math.rint(b), mc);
+					log10 = b * la;
+					value = Math.pow(a, b);
+					break;
+				default:
+					return false;
+			}
+
+			check(expr.toString(), digits, digits - Math.floor(log10) - 1);
+			return true;
+		}
+
+		/**
+		 * Sets log10 for a sum or difference of values with logs la and lb,
+		 * or returns false if its size isn't known. The size has to be right
+		 * both ways, since the scale check turns down tiny results as well as
+		 * huge ones, so where the doubles may have cancelled out it isn't.
+		 */
+		private boolean sum(double la, double lb, double a, double b, boolean plus) {
+			double larger = Math.max(la, lb);
+			if (Double.isInfinite(value) && (plus == (Math.signum(a) == Math.signum(b)))) {
+				// Too large for a double and no cancellation, so within a
+				// factor of two of the larger one.
+				log10 = larger + Math.log10(2);
+				return true;
+			} else if (Double.isNaN(value) || Double.isInfinite(value) || value == 0) {
+				return false;
+			}
+
+			log10 = Math.log10(Math.abs(value));
+			return log10 > larger - 10;
+		}
+
+		private boolean set(Expr expr, BigDecimal number) throws CalcException {
+			check(expr.toString(), number.precision(), number.scale());
+			log10 = (number.signum() == 0) ? 0 : BigMath.log10(number.abs());
+			digits = (mc.getPrecision() > 0) ? Math.min(number.precision(), mc.getPrecision())
+					: number.precision();
+			value = number.doubleValue();
+			return true;
+		}
+
+	}
+
+	@Override
+	public String toString() {
+		if (this == UNLIMITED) {
+			return "unlimited";
+		}
+		return String.format("%d steps, %d digits, scale %d, exponent %d", maxSteps, maxDigits,
+				maxScale, maxExponent);
+	}
+
+}
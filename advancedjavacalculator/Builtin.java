@@ -0,0 +1,190 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+import advancedjavacalculator.Type.Num;
+import advancedjavacalculator.Type.Obj;
+
+/**
+ * A builtin function. One and two argument builtins are called directly with
+ * their arguments, without an argument array; anything else goes through
+ * {@link Variadic}. A builtin can also carry a double kernel, which the fast
+ * number mode uses instead.
+ */
+public final class Builtin {
+
+	public interface Unary {
+		Num apply(Interpreter interpreter, Num x) throws CalcException;
+	}
+
+	public interface Binary {
+		Num apply(Interpreter interpreter, Num x, Num y) throws CalcException;
+	}
+
+	public interface Variadic {
+		Obj apply(Interpreter interpreter, Obj[] args) throws CalcException;
+	}
+
+	private final String name;
+	private final Unary unary;
+	private final Binary binary;
+	private final Variadic variadic;
+	private final DoubleUnaryOperator doubleUnary;
+	private final DoubleBinaryOperator doubleBinary;
+	private final boolean increasing;
+	private final LongAdder calls = new LongAdder();
+
+	private Builtin(String name, Unary unary, Binary binary, Variadic variadic,
+			DoubleUnaryOperator doubleUnary, DoubleBinaryOperator doubleBinary, boolean increasing) {
+		this.name = name;
+		this.unary = unary;
+		this.binary = binary;
+		this.variadic = variadic;
+		this.doubleUnary = doubleUnary;
+		this.doubleBinary = doubleBinary;
+		this.increasing = increasing;
+	}
+
+	private Builtin(String name, Unary unary, Binary binary, Variadic variadic,
+			DoubleUnaryOperator doubleUnary, DoubleBinaryOperator doubleBinary) {
+		this(name, unary, binary, variadic, doubleUnary, doubleBinary, false);
+	}
+
+	public static Builtin unary(String name, Unary unary) {
+		return new Builtin(name, unary, null, null, null, null);
+	}
+
+	public static Builtin unary(String name, Unary unary, DoubleUnaryOperator doubleUnary) {
+		return new Builtin(name, unary, null, null, doubleUnary, null);
+	}
+
+	public static Builtin binary(String name, Binary binary) {
+		return new Builtin(name, null, binary, null, null, null);
+	}
+
+	public static Builtin binary(String name, Binary binary, DoubleBinaryOperator doubleBinary) {
+		return new Builtin(name, null, binary, null, null, doubleBinary);
+	}
+
+	public static Builtin variadic(String name, Variadic variadic) {
+		return new Builtin(name, null, null, variadic, null, null);
+	}
+
+	/**
+	 * Wraps a static method with the signature (Interpreter, Obj[]), the way
+	 * builtins were declared before there was a registry.
+	 */
+	public static Builtin reflective(String name, Class<?> clazz, String methodName) throws Exception {
+		MethodHandle handle = MethodHandles.publicLookup()
+				.unreflect(clazz.getMethod(methodName, Interpreter.class, Obj[].class))
+				.asType(MethodType.methodType(Obj.class, Interpreter.class, Obj[].class));
+
+		return variadic(name, (interpreter, args) -> {
+			try {
+				return (Obj) handle.invokeExact(interpreter, args);
+			} catch (CalcException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new CalcException("Interpreter", "%s", e.getLocalizedMessage());
+			}
+		});
+	}
+
+	/**
+	 * Returns a copy that declares its double kernel increasing and accurate to
+	 * one ulp, so the adaptive number mode can bound it from its argument's
+	 * bounds.
+	 */
+	public Builtin increasing() {
+		if (doubleUnary == null) {
+			throw new IllegalStateException("Only unary builtins with a double kernel");
+		}
+		return new Builtin(name, unary, binary, variadic, doubleUnary, doubleBinary, true);
+	}
+
+	public Num call(Interpreter interpreter, Obj x) throws CalcException {
+		if (unary != null) {
+			calls.increment();
+			return unary.apply(interpreter, number(x));
+		}
+		return call(interpreter, new Obj[] { x });
+	}
+
+	public Num call(Interpreter interpreter, Obj x, Obj y) throws CalcException {
+		if (binary != null) {
+			calls.increment();
+			return binary.apply(interpreter, number(x), number(y));
+		}
+		return call(interpreter, new Obj[] { x, y });
+	}
+
+	public Num call(Interpreter interpreter, Obj[] args) throws CalcException {
+		calls.increment();
+		if (variadic == null) {
+			if (unary != null && args.length == 1) {
+				return unary.apply(interpreter, number(args[0]));
+			} else if (binary != null && args.length == 2) {
+				return binary.apply(interpreter, number(args[0]), number(args[1]));
+			}
+			throw new CalcException("Interpreter",
+					"Number of arguments given doesn't match expected number");
+		}
+
+		Obj ret = variadic.apply(interpreter, args);
+		if (ret == null || !ret.isNumber()) {
+			throw new CalcException("Interpreter", "Invalid return from builtin method %s", name);
+		}
+		return (Num) ret;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns how many times this builtin was called, on any number mode. An
+	 * adaptive evaluation that falls back to the exact one counts twice.
+	 */
+	public long getCalls() {
+		return calls.sum();
+	}
+
+	public void resetCalls() {
+		calls.reset();
+	}
+
+	void countCall() {
+		calls.increment();
+	}
+
+	DoubleUnaryOperator getDoubleUnary() {
+		return doubleUnary;
+	}
+
+	DoubleBinaryOperator getDoubleBinary() {
+		return doubleBinary;
+	}
+
+	boolean isIncreasing() {
+		return increasing;
+	}
+
+	private static Num number(Obj obj) throws CalcException {
+		if (!obj.isNumber()) {
+			throw new CalcException("Interpreter", "Argument type mismatch");
+		}
+		return (Num) obj;
+	}
+
+}
@@ -7,8 +7,9 @@
 package advancedjavacalculator;
 
 import java.math.BigDecimal;
-import java.math.MathContext;
 
+import advancedjavacalculator.Type.DoubleNum;
+import advancedjavacalculator.Type.Num;
 import advancedjavacalculator.Type.Obj;
 import advancedjavacalculator.Type.RealNum;
 
@@ -16,46 +17,66 @@ public final class BuiltinMethods {
 
 	private BuiltinMethods() {}
 
+	static void register(Interpreter interpreter) {
+		interpreter.addBuiltin(Builtin.unary("sqrt", BuiltinMethods::sqrt, Math::sqrt).increasing());
+		interpreter.addBuiltin(Builtin.unary("cbrt", BuiltinMethods::cbrt, Math::cbrt).increasing());
+		interpreter.addBuiltin(Builtin.binary("root", BuiltinMethods::root, BuiltinMethods::doubleRoot));
+	}
+
+	public static RealNum sqrt(Interpreter interpreter, Num x) throws CalcException {
+		return new RealNum(BigMath.sqrt(getRational(x).getNumber(), interpreter.getMathContext()));
+	}
+
+	public static RealNum cbrt(Interpreter interpreter, Num x) throws CalcException {
+		return new RealNum(BigMath.cbrt(getRational(x).getNumber(), interpreter.getMathContext()));
+	}
+
+	public static RealNum root(Interpreter interpreter, Num rootNum, Num nNum) throws CalcException {
+		BigDecimal root = getRational(rootNum).getNumber();
+		BigDecimal n = getRational(nNum).getNumber();
+
+		int rootInt;
+		try {
+			rootInt = root.intValueExact();
+		} catch (ArithmeticException e) {
+			throw new CalcException("Interpreter", "The root must be a whole number");
+		}
+
+		return new RealNum(BigMath.root(rootInt, n, interpreter.getMathContext()));
+	}
+
+	/**
+	 * root for doubles, where an odd root of a negative number is negative
+	 * like in {@link BigMath#root} rather than NaN like in Math.pow.
+	 */
+	static double doubleRoot(double root, double n) {
+		if (n < 0 && root == Math.rint(root) && Math.abs(root % 2) == 1) {
+			return -Math.pow(-n, 1 / root);
+		}
+		return Math.pow(n, 1 / root);
+	}
+
 	public static RealNum sqrt(Interpreter interpreter, Obj[] args) throws Exception {
 		checkArgs(args, new Type[] { Type.Num });
-		return root(interpreter, new Obj[] { new RealNum("2", interpreter.getMathContext()), getRational(args, 0) });
+		return sqrt(interpreter, (Num) args[0]);
 	}
 
 	public static RealNum cbrt(Interpreter interpreter, Obj[] args) throws Exception {
 		checkArgs(args, new Type[] { Type.Num });
-		return root(interpreter, new Obj[] { new RealNum("3", interpreter.getMathContext()), getRational(args, 0) });
+		return cbrt(interpreter, (Num) args[0]);
 	}
 
 	public static RealNum root(Interpreter interpreter, Obj[] args) throws Exception {
 		checkArgs(args, new Type[] { Type.Num, Type.Num });
-		int maxIterations = 500;
-
-		BigDecimal x = new BigDecimal("1", interpreter.getMathContext());
-		BigDecimal prevX = null;
-		MathContext m = interpreter.getMathContext();
-		BigDecimal root = getRational(args, 0).getNumber();
-		BigDecimal n = getRational(args, 1).getNumber();
-		int rootInt = root.intValueExact();
-
-		for (int i = 0; i < maxIterations; i++) {
-			try {
-				prevX = x;
-				x = x.subtract(
-						x.pow(rootInt, m).subtract(n, m)
-								.divide(root.multiply(x.pow(rootInt - 1, m), m), m), m);
-
-				if (x.compareTo(prevX) == 0) {
-					break;
-				}
-			} catch (ArithmeticException e) {
-				throw new Exception(e.getLocalizedMessage());
-			}
-		}
-
-		return new RealNum(x);
+		return root(interpreter, (Num) args[0], (Num) args[1]);
 	}
 
 	private static void checkArgs(Obj[] args, Type[] types) throws CalcException {
+		if (args.length != types.length) {
+			throw new CalcException("Interpreter",
+					"Number of arguments given doesn't match expected number");
+		}
+
 		for (int i = 0; i < args.length; i++) {
 			if (args[i].getType() != types[i]) {
 				if(types[i] == Type.Num && !args[i].isNumber()) {
@@ -65,8 +86,15 @@ public final class BuiltinMethods {
 		}
 	}
 
-	private static RealNum getRational(Obj[] args, int index) {
-		return (RealNum) args[index];
+	private static RealNum getRational(Num num) throws CalcException {
+		switch (num.getType()) {
+			case RealNum:
+				return (RealNum) num;
+			case DoubleNum:
+				return new RealNum(BigDecimal.valueOf(((DoubleNum) num).getNumber()));
+			default:
+				throw new CalcException("Interpreter", "Argument type mismatch");
+		}
 	}
 
 }
@@ -0,0 +1,120 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Sends lines to a {@link Daemon} and copies what comes back to standard
+ * output as it arrives. It only moves bytes and loads none of the calculator,
+ * so a calculation costs little more than starting the JVM.
+ * <p>
+ * The input goes out on its own thread while the results are read, so a
+ * script of any length streams through without either side waiting on the
+ * other.
+ */
+public final class Client {
+
+	private static final byte[] ERROR = "Error".getBytes(StandardCharsets.US_ASCII);
+
+	private Client() {}
+
+	/**
+	 * Sends lines, or standard input if there are none, to the daemon
+	 * listening on path.
+	 *
+	 * @return the exit status, 0 if every result was a value, 1 if one was an
+	 *         error and 2 if the daemon couldn't be reached
+	 */
+	public static int run(Path path, List<String> lines) {
+		final SocketChannel channel;
+		try {
+			channel = SocketChannel.open(UnixDomainSocketAddress.of(path));
+		} catch (IOException e) {
+			System.err.printf("Could not connect to the daemon on %s: %s%n", path, e.getMessage());
+			return 2;
+		}
+
+		Thread sender = new Thread(() -> send(channel, lines), "calc-client-send");
+		sender.setDaemon(true);
+		sender.start();
+
+		try (channel) {
+			return receive(channel) ? 1 : 0;
+		} catch (IOException e) {
+			System.err.printf("Lost the connection to the daemon: %s%n", e.getMessage());
+			return 2;
+		}
+	}
+
+	private static void send(SocketChannel channel, List<String> lines) {
+		try {
+			byte last = '\n';
+			if (!lines.isEmpty()) {
+				write(channel, ByteBuffer.wrap((String.join("\n", lines) + "\n")
+						.getBytes(StandardCharsets.UTF_8)));
+			} else {
+				InputStream in = System.in;
+				byte[] buffer = new byte[1 << 16];
+				int n;
+				while ((n = in.read(buffer)) >= 0) {
+					write(channel, ByteBuffer.wrap(buffer, 0, n));
+					if (n > 0) {
+						last = buffer[n - 1];
+					}
+				}
+			}
+			// Ends the session. Closing this side instead would tell the
+			// daemon that the client went away.
+			write(channel, ByteBuffer.wrap(((last == '\n') ? "-q\n" : "\n-q\n")
+					.getBytes(StandardCharsets.UTF_8)));
+		} catch (IOException e) {
+			// The daemon stopped reading, at -q or because it is going away.
+		}
+	}
+
+	private static void write(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Copies the results to standard output.
+	 *
+	 * @return whether a result was an error
+	 */
+	private static boolean receive(SocketChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		boolean error = false;
+		int matched = 0; // of ERROR at the start of the line, -1 when it can't match
+
+		while (channel.read(buffer) >= 0) {
+			byte[] bytes = buffer.array();
+			for (int i = 0; i < buffer.position(); i++) {
+				if (bytes[i] == '\n') {
+					matched = 0;
+				} else if (matched >= 0 && matched < ERROR.length) {
+					matched = (bytes[i] == ERROR[matched]) ? matched + 1 : -1;
+					error |= matched == ERROR.length;
+				}
+			}
+			System.out.write(bytes, 0, buffer.position());
+			System.out.flush();
+			buffer.clear();
+		}
+		return error;
+	}
+
+}
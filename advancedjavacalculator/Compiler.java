@@ -0,0 +1,150 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.util.List;
+
+import advancedjavacalculator.Expr.BinaryOpExpr;
+import advancedjavacalculator.Expr.CallExpr;
+import advancedjavacalculator.Expr.ConstantExpr;
+import advancedjavacalculator.Expr.GroupExpr;
+import advancedjavacalculator.Expr.LiteralExpr;
+import advancedjavacalculator.Expr.SlotExpr;
+import advancedjavacalculator.Interpreter.Scope;
+import advancedjavacalculator.Type.Func;
+import advancedjavacalculator.Type.Num;
+import advancedjavacalculator.Type.Obj;
+
+/**
+ * Turns an {@link Expr} tree into a tree of closures. All of the dispatch the
+ * interpreter does on every visit (the instanceof chain, the token lookups and
+ * the operator switch) happens once here, so evaluating the result is just a
+ * chain of direct {@link Num} calls. Anything that can't be compiled is handed
+ * back to the interpreter.
+ */
+final class Compiler {
+
+	interface Compiled {
+		Obj eval(Scope scope, Obj[] frame) throws CalcException;
+	}
+
+	private final Interpreter interpreter;
+
+	Compiler(Interpreter interpreter) {
+		this.interpreter = interpreter;
+	}
+
+	Compiled compile(final Expr expr) {
+		if (expr instanceof SlotExpr) {
+			final int slot = ((SlotExpr) expr).getSlot();
+			return (scope, frame) -> frame[slot];
+		} else if (expr instanceof LiteralExpr) {
+			return compileLiteral((LiteralExpr) expr);
+		} else if (expr instanceof ConstantExpr) {
+			final ConstantExpr constant = (ConstantExpr) expr;
+			return (scope, frame) -> interpreter.evalConstant(constant, scope);
+		} else if (expr instanceof GroupExpr) {
+			return compile(((GroupExpr) expr).getExpr());
+		} else if (expr instanceof BinaryOpExpr) {
+			return compileBinaryOp((BinaryOpExpr) expr);
+		} else if (expr instanceof CallExpr) {
+			return compileCall((CallExpr) expr);
+		}
+
+		return (scope, frame) -> interpreter.interpret(expr, scope, frame);
+	}
+
+	private Compiled compileLiteral(final LiteralExpr literal) {
+		if (literal.isNumber()) {
+			return (scope, frame) -> literal.getNumber(interpreter.getMathContext());
+		}
+
+		final String match = literal.getToken().getMatch();
+		return (scope, frame) -> scope.getConstantOrVariable(match, interpreter.getMathContext());
+	}
+
+	private Compiled compileBinaryOp(BinaryOpExpr binaryOp) {
+		final Compiled left = compile(binaryOp.getLeftExpr());
+		final Compiled right = compile(binaryOp.getRightExpr());
+
+		switch (binaryOp.getToken().getType()) {
+			case Plus:
+				return (scope, frame) -> left(left, scope, frame).add(right(right, scope, frame));
+			case Minus:
+				return (scope, frame) -> left(left, scope, frame).sub(right(right, scope, frame));
+			case Times:
+				return (scope, frame) -> left(left, scope, frame).mul(right(right, scope, frame));
+			case Divide:
+				return (scope, frame) -> left(left, scope, frame).div(right(right, scope, frame));
+			case Mod:
+				return (scope, frame) -> left(left, scope, frame).mod(right(right, scope, frame));
+			case Pow:
+				return (scope, frame) -> left(left, scope, frame).pow(right(right, scope, frame),
+						interpreter.getMathContext());
+			default:
+				return (scope, frame) -> interpreter.interpret(binaryOp, scope, frame);
+		}
+	}
+
+	private Compiled compileCall(final CallExpr call) {
+		final String name = call.getExpr().toString();
+		List<Expr> arguments = call.getArguments();
+		final Compiled[] args = new Compiled[arguments.size()];
+		for (int i = 0; i < args.length; i++) {
+			args[i] = compile(arguments.get(i));
+		}
+
+		return (scope, frame) -> {
+			Builtin builtin = interpreter.getBuiltin(name);
+			if (builtin != null) {
+				switch (args.length) {
+					case 1:
+						return builtin.call(interpreter, args[0].eval(scope, frame));
+					case 2:
+						return builtin.call(interpreter, args[0].eval(scope, frame),
+								args[1].eval(scope, frame));
+					default:
+						return builtin.call(interpreter, evalArgs(args, scope, frame));
+				}
+			}
+
+			Func func = scope.getFunction(name);
+			if (func.getArguments().size() != args.length) {
+				throw new CalcException("Interpreter",
+						"Number of arguments given doesn't match expected number");
+			}
+			return interpreter.callFunction(name, func, scope, evalArgs(args, scope, frame));
+		};
+	}
+
+	private static Obj[] evalArgs(Compiled[] args, Scope scope, Obj[] frame) throws CalcException {
+		Obj[] values = new Obj[args.length];
+		for (int i = 0; i < args.length; i++) {
+			values[i] = args[i].eval(scope, frame);
+		}
+		return values;
+	}
+
+	private static Num left(Compiled compiled, Scope scope, Obj[] frame) throws CalcException {
+		Obj obj = compiled.eval(scope, frame);
+		if (!obj.isNumber()) {
+			throw new CalcException("Interpreter", "Invalid left type '%s' for a binary operation",
+					obj.getType());
+		}
+		return (Num) obj;
+	}
+
+	private static Num right(Compiled compiled, Scope scope, Obj[] frame) throws CalcException {
+		Obj obj = compiled.eval(scope, frame);
+		if (!obj.isNumber()) {
+			throw new CalcException("Interpreter",
+					"Invalid right type '%s' for a binary operation", obj.getType());
+		}
+		return (Num) obj;
+	}
+
+}
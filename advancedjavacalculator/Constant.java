@@ -0,0 +1,117 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+import advancedjavacalculator.Type.DoubleNum;
+import advancedjavacalculator.Type.Num;
+import advancedjavacalculator.Type.RealNum;
+
+/**
+ * A named number in a {@link Interpreter.Scope}. Either it has a fixed value,
+ * or it is worked out to whatever precision it is asked for. The most precise
+ * value computed so far is kept and lower precisions are rounded from it, so
+ * going back and forth with -p never computes it again from scratch.
+ */
+public final class Constant {
+
+	interface Series {
+		BigDecimal compute(MathContext mc) throws CalcException;
+	}
+
+	public static final Constant PI = new Constant(Math.PI, BigMath::pi);
+	public static final Constant E = new Constant(Math.E, BigMath::e);
+	public static final Constant LN2 = new Constant(Math.log(2), BigMath::ln2);
+	public static final Constant LN10 = new Constant(Math.log(10), BigMath::ln10);
+
+	// Extra digits computed on top of the precision asked for, so that
+	// rounding to it later is still correct.
+	private static final int GUARD_DIGITS = 10;
+
+	private static final class Rounded {
+
+		private final MathContext mathContext;
+		private final Num number;
+
+		private Rounded(MathContext mathContext, Num number) {
+			this.mathContext = mathContext;
+			this.number = number;
+		}
+
+	}
+
+	private final Num fixed;
+	private final double approximation;
+	private final Series series;
+	private volatile BigDecimal best = BigDecimal.ZERO;
+	private volatile Rounded rounded;
+
+	private Constant(double approximation, Series series) {
+		this.fixed = null;
+		this.approximation = approximation;
+		this.series = series;
+	}
+
+	public Constant(Num number) {
+		this.fixed = number;
+		this.approximation = Double.NaN;
+		this.series = null;
+	}
+
+	/**
+	 * Returns the value rounded to mathContext.
+	 */
+	public Num getNumber(MathContext mathContext) throws CalcException {
+		if (fixed != null) {
+			return fixed;
+		}
+
+		Rounded cached = rounded;
+		if (cached == null || !cached.mathContext.equals(mathContext)) {
+			cached = new Rounded(mathContext, new RealNum(getValue(mathContext)));
+			rounded = cached;
+		}
+		return cached.number;
+	}
+
+	/**
+	 * Returns the value to use in {@link Interpreter.NumberMode#Fast}, the
+	 * closest double unless it has a fixed value.
+	 */
+	public Num getApproximation() {
+		return (fixed != null) ? fixed : new DoubleNum(approximation);
+	}
+
+	BigDecimal getValue(MathContext mathContext) throws CalcException {
+		int precision = mathContext.getPrecision();
+		if (precision == 0) {
+			throw new CalcException("Interpreter", "The precision must be limited, see -p");
+		}
+
+		BigDecimal value = best;
+		if (value.precision() < precision + GUARD_DIGITS) {
+			synchronized (this) {
+				value = best;
+				if (value.precision() < precision + GUARD_DIGITS) {
+					value = series.compute(new MathContext(precision + 2 * GUARD_DIGITS,
+							RoundingMode.HALF_EVEN));
+					best = value;
+				}
+			}
+		}
+		return value.round(mathContext);
+	}
+
+	@Override
+	public String toString() {
+		return (fixed != null) ? fixed.toString() : Double.toString(approximation);
+	}
+
+}
@@ -0,0 +1,382 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a warmed up calculator running behind a Unix domain socket, so that a
+ * calculation costs a connection instead of starting a JVM, loading classes
+ * and compiling the interpreter all over again. See {@link Client} for the
+ * other end.
+ * <p>
+ * A connection is like a REPL session. Every line sent is evaluated, commands
+ * included, and every result that isn't empty comes back as soon as no more
+ * input is waiting, so results stream out while a long script is still being
+ * sent. The session ends at -q, which {@link Client} sends after the input.
+ * Input that ends without it means the client went away, and the statement
+ * running then is cancelled along with the rest. Each connection gets its own
+ * variables and settings on top of the constants, builtins and parse cache
+ * that all of them share with the daemon, and every statement runs under the
+ * daemon's budget and timeout.
+ * <p>
+ * Only the user running the daemon may connect to the socket.
+ */
+public class Daemon {
+
+	// How long warming up runs each expression for, in each number mode.
+	private static final long WARM_UP_NANOS = TimeUnit.MILLISECONDS.toNanos(300);
+
+	private static final String[] WARM_UP = { "f(a, b) = a * b + sqrt(a) / (b + 1)",
+			"f(3.5, 7) ^ 2 - 1 / 8", "x = 2 * (PI + 1.25) - 7 % 3",
+			"root(3, x) + cbrt(27.5) * 0.1 - 0x1F", "f(x, x) / 3" };
+
+	// How many lines are read ahead of the statement being evaluated.
+	private static final int READ_AHEAD = 1024;
+
+	private final Path path;
+	private final Interpreter template = new Interpreter();
+	private final ThreadPoolExecutor connections;
+	private final ScheduledThreadPoolExecutor timeouts;
+	private final long timeout;
+	private final TimeUnit unit;
+	private ServerSocketChannel server;
+
+	/**
+	 * @param maxConnections how many connections are served at the same time,
+	 *            more are turned away
+	 * @param budget what a statement may use, see {@link Budget}
+	 * @param timeout how long a statement may run before it is cancelled
+	 */
+	public Daemon(Path path, int maxConnections, Budget budget, long timeout, TimeUnit unit) {
+		this.path = path;
+		this.timeout = timeout;
+		this.unit = unit;
+		template.setBudget(budget);
+		final AtomicInteger id = new AtomicInteger();
+		this.connections = new ThreadPoolExecutor(0, maxConnections, 60L, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), runnable -> {
+					Thread thread = new Thread(runnable, "calc-daemon-" + id.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		this.timeouts = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "calc-daemon-timeout");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.timeouts.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Evaluates a mix of statements for a while in each number mode, so that
+	 * the JIT has compiled the interpreter before the first connection.
+	 */
+	public void warmUp() {
+		for (String mode : new String[] { "exact", "fast", "adaptive" }) {
+			Interpreter interpreter = new Interpreter(template);
+			new InterpretTask("-m " + mode, interpreter).call();
+			long end = System.nanoTime() + WARM_UP_NANOS;
+			while (System.nanoTime() < end) {
+				for (String input : WARM_UP) {
+					new InterpretTask(input, interpreter).call();
+				}
+			}
+		}
+		Stats.reset();
+		for (Builtin builtin : template.getBuiltins().values()) {
+			builtin.resetCalls();
+		}
+	}
+
+	/**
+	 * Creates the socket, replacing a socket file left behind by a daemon that
+	 * is gone. One that is still answering is left alone.
+	 */
+	public synchronized void bind() throws IOException {
+		if (Files.exists(path)) {
+			if (isListening(path)) {
+				throw new IOException(String.format("A daemon is already listening on %s", path));
+			}
+			Files.delete(path);
+		}
+
+		// Bound with the umask, the socket could be connected to before it
+		// is made private, so it is bound and made private in a directory
+		// only the owner can enter and then moved into place.
+		Path parent = path.toAbsolutePath().getParent();
+		Path directory = Files.createTempDirectory(parent, ".calc-daemon", PosixFilePermissions
+				.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		Path temp = directory.resolve("socket");
+		try {
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			server.bind(UnixDomainSocketAddress.of(temp));
+			Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+			Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			if (server != null) {
+				server.close();
+			}
+			throw e;
+		} finally {
+			Files.deleteIfExists(temp);
+			Files.delete(directory);
+		}
+	}
+
+	/**
+	 * Serves connections until {@link #close()}.
+	 */
+	public void run() throws IOException {
+		try {
+			for (;;) {
+				final SocketChannel channel;
+				try {
+					channel = server.accept();
+				} catch (ClosedChannelException e) {
+					break;
+				}
+
+				try {
+					connections.execute(() -> serve(channel));
+				} catch (RejectedExecutionException e) {
+					try (channel; Writer out = writer(channel)) {
+						out.write("Error -> The calculator is busy, please try again later\n");
+					} catch (IOException ignored) {
+						// Gone already.
+					}
+				}
+			}
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Stops accepting connections, cuts the ones being served short and
+	 * removes the socket file.
+	 */
+	public synchronized void close() {
+		connections.shutdownNow();
+		timeouts.shutdownNow();
+		if (server != null && server.isOpen()) {
+			try {
+				server.close();
+				Files.deleteIfExists(path);
+			} catch (IOException e) {
+				// Closing anyway.
+			}
+		}
+	}
+
+	private static boolean isListening(Path path) {
+		try {
+			SocketChannel.open(UnixDomainSocketAddress.of(path)).close();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Evaluates the lines of a connection while another thread reads them, so
+	 * that it notices the client going away in the middle of a statement.
+	 */
+	private void serve(SocketChannel channel) {
+		Interpreter interpreter = new Interpreter(template);
+		BlockingQueue<String> lines = new ArrayBlockingQueue<String>(READ_AHEAD);
+		Session session = new Session();
+		Thread reader = new Thread(() -> read(channel, lines, session), Thread.currentThread()
+				.getName() + "-read");
+		reader.setDaemon(true);
+
+		try (channel; Writer out = writer(channel)) {
+			reader.start();
+			for (;;) {
+				String input = lines.take();
+				if (session.isGone()) {
+					break;
+				}
+				String ret = evaluate(session, new InterpretTask(input, interpreter));
+				if (ret == null) {
+					break;
+				}
+				if (!ret.isEmpty()) {
+					out.write(ret);
+					out.write('\n');
+				}
+				if (lines.isEmpty()) {
+					out.flush();
+				}
+			}
+		} catch (IOException | InterruptedException e) {
+			// The client went away, or the daemon is closing.
+		} finally {
+			reader.interrupt();
+		}
+	}
+
+	private String evaluate(Session session, InterpretTask task) {
+		session.begin();
+		ScheduledFuture<?> timer = timeouts.schedule(session::timeOut, timeout, unit);
+		String ret;
+		try {
+			ret = task.call();
+		} finally {
+			timer.cancel(false);
+			session.end();
+		}
+
+		if (session.isTimedOut()) {
+			Stats.timedOut();
+			return String.format("Error -> Calculation took longer than %d %s", timeout, unit
+					.toString().toLowerCase());
+		}
+		return ret;
+	}
+
+	private static void read(SocketChannel channel, BlockingQueue<String> lines, Session session) {
+		// Not closed here, the connection is closed once the session ends.
+		BufferedReader in = new BufferedReader(new InputStreamReader(input(channel),
+				StandardCharsets.UTF_8), 1 << 16);
+		try {
+			// What comes after -q is dropped, but reading on is what notices
+			// the client going away while the statements before it run.
+			boolean quit = false;
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!quit) {
+					lines.put(line);
+					quit = line.equals("-q");
+				}
+			}
+		} catch (IOException | InterruptedException e) {
+			// Gone, or the session is over.
+		}
+		session.hangUp();
+		// Wakes the session up if it is waiting for a line; if there is no
+		// room, it has lines to get through and looks at the session first.
+		lines.offer("");
+	}
+
+	/**
+	 * Reads the channel without taking its blocking lock. The stream from
+	 * Channels.newInputStream holds it while waiting for input, which would
+	 * keep the session from writing meanwhile.
+	 */
+	private static InputStream input(final SocketChannel channel) {
+		return new InputStream() {
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return (read(b, 0, 1) < 0) ? -1 : b[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return (len == 0) ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+			}
+
+		};
+	}
+
+	/**
+	 * Writes to the channel without taking its blocking lock, see
+	 * {@link #input(SocketChannel)}.
+	 */
+	private static Writer writer(final SocketChannel channel) {
+		OutputStream out = new OutputStream() {
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+
+		};
+		return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	/**
+	 * Whether a connection is evaluating a statement, so that the timeout or
+	 * the client going away only ever interrupts the statement.
+	 */
+	private static final class Session {
+
+		private final Thread worker = Thread.currentThread();
+		private boolean running, timedOut, gone;
+
+		synchronized void begin() {
+			running = true;
+			timedOut = false;
+		}
+
+		synchronized void end() {
+			running = false;
+			Thread.interrupted();
+		}
+
+		synchronized void timeOut() {
+			if (running) {
+				timedOut = true;
+				worker.interrupt();
+			}
+		}
+
+		synchronized void hangUp() {
+			gone = true;
+			if (running) {
+				worker.interrupt();
+			}
+		}
+
+		synchronized boolean isTimedOut() {
+			return timedOut;
+		}
+
+		synchronized boolean isGone() {
+			return gone;
+		}
+
+	}
+
+}
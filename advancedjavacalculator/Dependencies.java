@@ -0,0 +1,114 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import advancedjavacalculator.Expr.AssignExpr;
+import advancedjavacalculator.Expr.BinaryOpExpr;
+import advancedjavacalculator.Expr.CallExpr;
+import advancedjavacalculator.Expr.ConstantExpr;
+import advancedjavacalculator.Expr.GroupExpr;
+import advancedjavacalculator.Expr.LiteralExpr;
+import advancedjavacalculator.Interpreter.Scope;
+import advancedjavacalculator.Token.TokenType;
+import advancedjavacalculator.Type.Func;
+
+/**
+ * The names an expression reads and assigns when it runs, including those of
+ * the functions it calls. Variables and functions share one namespace here,
+ * since a name can only be one of them at a time.
+ */
+final class Dependencies {
+
+	private final Interpreter interpreter;
+	private final Scope scope;
+	private final Map<String, Func> functions;
+	private final Set<String> reads = new HashSet<String>();
+	private final Set<String> writes = new HashSet<String>();
+	private final Set<String> followed = new HashSet<String>();
+
+	/**
+	 * @param functions definitions that take the place of those in the scope,
+	 *            such as ones made earlier in a script that hasn't run yet
+	 */
+	Dependencies(Interpreter interpreter, Scope scope, Map<String, Func> functions) {
+		this.interpreter = interpreter;
+		this.scope = scope;
+		this.functions = functions;
+	}
+
+	static Dependencies of(Interpreter interpreter, Scope scope, Expr expr) {
+		Dependencies dependencies = new Dependencies(interpreter, scope, Collections
+				.<String, Func> emptyMap());
+		dependencies.collect(expr, null);
+		return dependencies;
+	}
+
+	Set<String> getReads() {
+		return reads;
+	}
+
+	Set<String> getWrites() {
+		return writes;
+	}
+
+	/**
+	 * @param arguments the parameters of the function whose body expr is,
+	 *            which are not globals, or null at the top level
+	 */
+	void collect(Expr expr, List<String> arguments) {
+		if (expr instanceof LiteralExpr) {
+			String name = expr.getToken().getMatch();
+			if (expr.getToken().getType() == TokenType.Ident
+					&& (arguments == null || !arguments.contains(name))
+					&& scope.getConstantNoError(name) == null) {
+				reads.add(name);
+			}
+		} else if (expr instanceof ConstantExpr) {
+			collect(((ConstantExpr) expr).getExpr(), arguments);
+		} else if (expr instanceof GroupExpr) {
+			collect(((GroupExpr) expr).getExpr(), arguments);
+		} else if (expr instanceof BinaryOpExpr) {
+			collect(((BinaryOpExpr) expr).getLeftExpr(), arguments);
+			collect(((BinaryOpExpr) expr).getRightExpr(), arguments);
+		} else if (expr instanceof CallExpr) {
+			CallExpr call = (CallExpr) expr;
+			for (Expr arg : call.getArguments()) {
+				collect(arg, arguments);
+			}
+
+			String name = call.getExpr().toString();
+			if (interpreter.getBuiltin(name) == null) {
+				reads.add(name);
+				Func func = functions.containsKey(name) ? functions.get(name) : scope
+						.getFunctionNoError(name);
+				if (func != null && followed.add(name)) {
+					collect(func.getCode(), func.getArguments());
+				}
+			}
+		} else if (expr instanceof AssignExpr) {
+			AssignExpr assign = (AssignExpr) expr;
+			if (assign.getDef().getToken().getType() != TokenType.Ident) {
+				// A definition doesn't run its body.
+				writes.add(((CallExpr) assign.getDef()).getExpr().toString());
+			} else {
+				// A variable assigned in a body belongs to the call.
+				if (arguments == null) {
+					writes.add(assign.getDef().toString());
+				}
+				collect(assign.getVal(), arguments);
+			}
+		}
+		// Slots are arguments and the variables of a call.
+	}
+
+}
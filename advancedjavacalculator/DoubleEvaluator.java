@@ -0,0 +1,174 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import advancedjavacalculator.Expr.AssignExpr;
+import advancedjavacalculator.Expr.BinaryOpExpr;
+import advancedjavacalculator.Expr.CallExpr;
+import advancedjavacalculator.Expr.ConstantExpr;
+import advancedjavacalculator.Expr.GroupExpr;
+import advancedjavacalculator.Expr.LiteralExpr;
+import advancedjavacalculator.Expr.SlotExpr;
+import advancedjavacalculator.Interpreter.Scope;
+import advancedjavacalculator.Type.DoubleNum;
+import advancedjavacalculator.Type.Func;
+import advancedjavacalculator.Type.Obj;
+import advancedjavacalculator.Type.RealNum;
+
+/**
+ * The evaluation path for {@link Interpreter.NumberMode#Fast}. Intermediate
+ * values stay primitive doubles, so plain arithmetic doesn't allocate; only
+ * the final result gets boxed into a {@link DoubleNum}.
+ */
+final class DoubleEvaluator {
+
+	private final Interpreter interpreter;
+
+	DoubleEvaluator(Interpreter interpreter) {
+		this.interpreter = interpreter;
+	}
+
+	/**
+	 * @param frame the arguments and variables of the function whose body is
+	 *            being evaluated, or null at the top level
+	 */
+	double eval(Expr expr, Scope scope, double[] frame) throws CalcException {
+		if (expr instanceof SlotExpr) {
+			return frame[((SlotExpr) expr).getSlot()];
+		} else if (expr instanceof LiteralExpr) {
+			LiteralExpr literal = (LiteralExpr) expr;
+			if (literal.isNumber()) {
+				return literal.getDoubleNumber();
+			}
+
+			String name = expr.getToken().getMatch();
+			Constant constant = scope.getConstantNoError(name);
+			return toDouble((constant != null) ? constant.getApproximation() : scope.getVariable(name),
+					"Invalid type '%s' for a number");
+		} else if (expr instanceof ConstantExpr) {
+			ConstantExpr constant = (ConstantExpr) expr;
+			if (!constant.hasDoubleNumber()) {
+				constant.setDoubleNumber(eval(constant.getExpr(), scope, null));
+			}
+			return constant.getDoubleNumber();
+		} else if (expr instanceof GroupExpr) {
+			return eval(((GroupExpr) expr).getExpr(), scope, frame);
+		} else if (expr instanceof BinaryOpExpr) {
+			BinaryOpExpr binaryOp = (BinaryOpExpr) expr;
+			double left = eval(binaryOp.getLeftExpr(), scope, frame);
+			double right = eval(binaryOp.getRightExpr(), scope, frame);
+
+			switch (expr.getToken().getType()) {
+				case Plus:
+					return left + right;
+				case Minus:
+					return left - right;
+				case Times:
+					return left * right;
+				case Divide:
+					return DoubleNum.div(left, right);
+				case Mod:
+					return DoubleNum.mod(left, right);
+				case Pow:
+					return Math.pow(left, right);
+				default:
+					break;
+			}
+		} else if (expr instanceof CallExpr) {
+			return call((CallExpr) expr, scope, frame);
+		} else if (expr instanceof AssignExpr && ((AssignExpr) expr).getDef() instanceof SlotExpr) {
+			AssignExpr assign = (AssignExpr) expr;
+			double value = eval(assign.getVal(), scope, frame);
+			frame[((SlotExpr) assign.getDef()).getSlot()] = value;
+			return value;
+		}
+
+		return toDouble(interpreter.interpret(expr, scope, toFrame(frame)),
+				"Invalid type '%s' for a number");
+	}
+
+	private double call(CallExpr call, Scope scope, double[] frame) throws CalcException {
+		Interpreter.checkCancelled();
+
+		String name = call.getExpr().toString();
+		List<Expr> arguments = call.getArguments();
+
+		Builtin builtin = interpreter.getBuiltin(name);
+		if (builtin != null) {
+			if (builtin.getDoubleUnary() != null && arguments.size() == 1) {
+				builtin.countCall();
+				return builtin.getDoubleUnary().applyAsDouble(eval(arguments.get(0), scope, frame));
+			} else if (builtin.getDoubleBinary() != null && arguments.size() == 2) {
+				builtin.countCall();
+				return builtin.getDoubleBinary().applyAsDouble(eval(arguments.get(0), scope, frame),
+						eval(arguments.get(1), scope, frame));
+			}
+
+			Obj[] args = new Obj[arguments.size()];
+			for (int i = 0; i < args.length; i++) {
+				args[i] = new RealNum(BigDecimal.valueOf(eval(arguments.get(i), scope, frame)));
+			}
+			return toDouble(builtin.call(interpreter, args),
+					"Invalid return type '%s' from builtin method");
+		}
+
+		Func func = scope.getFunction(name);
+		if (func.getArguments().size() != arguments.size()) {
+			throw new CalcException("Interpreter",
+					"Number of arguments given doesn't match expected number");
+		}
+
+		double[] args = new double[func.getFrameSize()];
+		for (int i = 0; i < arguments.size(); i++) {
+			args[i] = eval(arguments.get(i), scope, frame);
+		}
+		func.countCall();
+		return eval(func.getCode(), scope, args);
+	}
+
+	static double[] toFrame(Obj[] frame) throws CalcException {
+		if (frame == null) {
+			return null;
+		}
+
+		double[] doubles = new double[frame.length];
+		for (int i = 0; i < frame.length; i++) {
+			// Variables the body hasn't assigned yet are left out.
+			if (frame[i] != null) {
+				doubles[i] = toDouble(frame[i], "Invalid argument type '%s' for a number");
+			}
+		}
+		return doubles;
+	}
+
+	static Obj[] toFrame(double[] frame) {
+		if (frame == null) {
+			return null;
+		}
+
+		Obj[] objs = new Obj[frame.length];
+		for (int i = 0; i < frame.length; i++) {
+			objs[i] = new DoubleNum(frame[i]);
+		}
+		return objs;
+	}
+
+	private static double toDouble(Obj obj, String error) throws CalcException {
+		switch (obj.getType()) {
+			case DoubleNum:
+				return ((DoubleNum) obj).getNumber();
+			case RealNum:
+				return ((RealNum) obj).getNumber().doubleValue();
+			default:
+				throw new CalcException("Interpreter", error, obj.getType());
+		}
+	}
+
+}
@@ -6,14 +6,101 @@
 
 package advancedjavacalculator;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
 import java.util.List;
 
+import advancedjavacalculator.Token.TokenType;
+import advancedjavacalculator.Type.Num;
+import advancedjavacalculator.Type.RealNum;
+
 public abstract class Expr {
 
 	public static class LiteralExpr extends Expr {
 
-		public LiteralExpr(Token token) {
+		private static final class Rounded {
+
+			private final MathContext mathContext;
+			private final RealNum number;
+
+			private Rounded(MathContext mathContext, RealNum number) {
+				this.mathContext = mathContext;
+				this.number = number;
+			}
+
+		}
+
+		private final BigDecimal number;
+		private final double doubleNumber;
+		private volatile Rounded rounded;
+
+		/**
+		 * Number literals are parsed here, once. The exact value is kept and
+		 * rounded lazily to whatever MathContext asks for it, so the same tree
+		 * can be evaluated at any precision without touching the token again.
+		 */
+		public LiteralExpr(Token token) throws CalcException {
+			super(token);
+
+			if (token.getType() == TokenType.Ident) {
+				number = null;
+				doubleNumber = Double.NaN;
+				return;
+			}
+
+			String match = token.getMatch();
+			try {
+				if (match.startsWith("0x")) {
+					number = new BigDecimal(new BigInteger(match.substring(2), 16));
+				} else {
+					number = new BigDecimal(match);
+				}
+			} catch (NumberFormatException e) {
+				throw new CalcException("Parser", "Invalid number %s", match);
+			}
+			doubleNumber = number.doubleValue();
+		}
+
+		public boolean isNumber() {
+			return number != null;
+		}
+
+		public BigDecimal getExactNumber() {
+			return number;
+		}
+
+		public RealNum getNumber(MathContext mathContext) {
+			Rounded cached = rounded;
+			if (cached == null || !cached.mathContext.equals(mathContext)) {
+				cached = new Rounded(mathContext, new RealNum(number.round(mathContext)));
+				rounded = cached;
+			}
+			return cached.number;
+		}
+
+		public double getDoubleNumber() {
+			return doubleNumber;
+		}
+
+		@Override
+		public String toString() {
+			return getToken().getMatch();
+		}
+
+	}
+
+	/**
+	 * A reference to a function argument, resolved to its position in the
+	 * argument frame when the function is defined.
+	 */
+	public static class SlotExpr extends Expr {
+
+		private final int slot;
+
+		public SlotExpr(Token token, int slot) {
 			super(token);
+			this.slot = slot;
 		}
 
 		@Override
@@ -21,6 +108,75 @@ public abstract class Expr {
 			return getToken().getMatch();
 		}
 
+		public int getSlot() {
+			return slot;
+		}
+
+	}
+
+	/**
+	 * A subtree the optimizer found to be constant. Its value is worked out on
+	 * first use and kept for each MathContext, so the tree stays valid across
+	 * -p.
+	 */
+	public static class ConstantExpr extends Expr {
+
+		private static final class Folded {
+
+			private final MathContext mathContext;
+			private final Num number;
+
+			private Folded(MathContext mathContext, Num number) {
+				this.mathContext = mathContext;
+				this.number = number;
+			}
+
+		}
+
+		private final Expr expr;
+		private volatile Folded folded;
+		private volatile boolean hasDoubleNumber;
+		private double doubleNumber;
+
+		public ConstantExpr(Expr expr) {
+			super(expr.getToken());
+			this.expr = expr;
+		}
+
+		@Override
+		public String toString() {
+			return expr.toString();
+		}
+
+		public Expr getExpr() {
+			return expr;
+		}
+
+		Num getNumber(MathContext mathContext) {
+			Folded cached = folded;
+			if (cached == null || !cached.mathContext.equals(mathContext)) {
+				return null;
+			}
+			return cached.number;
+		}
+
+		void setNumber(MathContext mathContext, Num number) {
+			folded = new Folded(mathContext, number);
+		}
+
+		boolean hasDoubleNumber() {
+			return hasDoubleNumber;
+		}
+
+		double getDoubleNumber() {
+			return doubleNumber;
+		}
+
+		void setDoubleNumber(double doubleNumber) {
+			this.doubleNumber = doubleNumber;
+			hasDoubleNumber = true;
+		}
+
 	}
 
 	public static class BinaryOpExpr extends Expr {
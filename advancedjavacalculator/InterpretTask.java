@@ -0,0 +1,242 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.math.MathContext;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import advancedjavacalculator.Interpreter.NumberMode;
+import advancedjavacalculator.Type.Func;
+import advancedjavacalculator.Type.Obj;
+
+class InterpretTask implements Callable<String> {
+
+	private String input;
+	private Interpreter interpreter;
+
+	public InterpretTask(String input, Interpreter interpreter) {
+		this.input = input;
+		this.interpreter = interpreter;
+	}
+
+	@Override
+	public String call() {
+		if (input.equals("-q")) {
+			return null;
+		} else if (input.equals("-r")) {
+			interpreter.getScope().clearVariables();
+			return "";
+		} else if (input.startsWith("-stats")) {
+			return stats(input.split(" "));
+		} else if (input.equals("-budget")) {
+			return interpreter.getBudget().toString();
+		} else if (input.startsWith("-p")) {
+			if (input.contains(" ")) {
+				int prec = Integer.parseInt(input.split(" ")[1]);
+				if (prec > interpreter.getBudget().getMaxDigits()
+						|| (prec == 0 && interpreter.getBudget() != Budget.UNLIMITED)) {
+					return String.format("Error -> The precision is limited to %d digits",
+							interpreter.getBudget().getMaxDigits());
+				}
+				interpreter.setMathContext(new MathContext(prec));
+				return "";
+			} else {
+				return String.format("%d", interpreter.getMathContext().getPrecision());
+			}
+		} else if (input.startsWith("-memo")) {
+			return memo(input.split(" "));
+		} else if (input.startsWith("-m")) {
+			if (input.contains(" ")) {
+				String mode = input.split(" ")[1];
+				interpreter.setNumberMode(mode.equals("fast") ? NumberMode.Fast
+						: mode.equals("adaptive") ? NumberMode.Adaptive : NumberMode.Exact);
+				return "";
+			} else {
+				return interpreter.getNumberMode().name().toLowerCase();
+			}
+		} else if (input.startsWith("-reactive")) {
+			if (input.contains(" ")) {
+				interpreter.setReactive(input.split(" ")[1].equals("on"));
+				return "";
+			} else {
+				return interpreter.isReactive() ? "on" : "off";
+			}
+		} else if (input.startsWith("-j")) {
+			if (input.contains(" ")) {
+				interpreter.setParallel(input.split(" ")[1].equals("on"));
+				return "";
+			} else {
+				return interpreter.isParallel() ? "on" : "off";
+			}
+		} else if (input.startsWith("-c")) {
+			if (input.contains(" ")) {
+				interpreter.setCompiling(input.split(" ")[1].equals("on"));
+				return "";
+			} else {
+				return interpreter.isCompiling() ? "on" : "off";
+			}
+		}
+
+		Stats.RequestEvent event = new Stats.RequestEvent();
+		event.begin();
+		long start = System.nanoTime();
+
+		String ret = evaluate();
+
+		boolean error = ret != null && ret.startsWith("Error");
+		Stats.REQUEST.record(System.nanoTime() - start);
+		Stats.request(error, Thread.currentThread().isInterrupted());
+		if (event.shouldCommit()) {
+			event.input = input;
+			event.error = error;
+			event.commit();
+		}
+		return ret;
+	}
+
+	/**
+	 * Evaluates every statement of the input. The results of a multi-line
+	 * input come back one per line, in the order of the statements.
+	 */
+	private String evaluate() {
+		try {
+			List<Expr> exprs = interpreter.getParseCache().parse(input);
+			if (exprs.size() == 1) {
+				Obj ret = interpreter.interpretExpr(exprs.get(0), interpreter.getScope());
+				return (ret != null) ? ret.toString() : null;
+			} else if (exprs.size() > 1) {
+				StringBuilder out = new StringBuilder();
+				for (ScriptExecutor.Result result : new ScriptExecutor(interpreter).execute(exprs)) {
+					if (!result.toString().isEmpty()) {
+						if (out.length() > 0) {
+							out.append('\n');
+						}
+						out.append(result);
+					}
+				}
+				return out.toString();
+			}
+		} catch (Exception e) {
+			return String.format("Error -> %s", e.getMessage());
+		} catch (StackOverflowError e) {
+			return "Error -> Too many nested function calls";
+		}
+
+		return null;
+	}
+
+	/**
+	 * -stats gives the request counts, -stats lex, parse, eval, request or irc
+	 * the latencies of that phase, -stats calls the most called builtins and
+	 * functions, -stats cache the cache hit counts and -stats reset starts
+	 * over. Each fits on one line for IRC.
+	 */
+	private String stats(String[] args) {
+		if (args.length == 1) {
+			return Stats.summary();
+		}
+
+		Stats.Histogram histogram = Stats.getHistogram(args[1]);
+		if (histogram != null) {
+			return histogram.toString();
+		}
+
+		switch (args[1]) {
+			case "calls":
+				return calls();
+			case "cache":
+				ParseCache parseCache = interpreter.getParseCache();
+				long memoHits = 0, memoMisses = 0;
+				for (Memo memo : interpreter.getMemos().values()) {
+					memoHits += memo.getHits();
+					memoMisses += memo.getMisses();
+				}
+				return String.format("parse %d hits, %d misses; memo %d hits, %d misses; "
+						+ "adaptive %d certified, %d escalated; %d forks; %d recomputed",
+						parseCache.getHits(), parseCache.getMisses(), memoHits, memoMisses,
+						interpreter.getCertified(), interpreter.getEscalated(),
+						interpreter.getForks(), (interpreter.getSheet() != null) ? interpreter
+								.getSheet().getRecomputed() : 0);
+			case "reset":
+				Stats.reset();
+				for (Builtin builtin : interpreter.getBuiltins().values()) {
+					builtin.resetCalls();
+				}
+				for (Obj obj : interpreter.getScope().getVariables().values()) {
+					if (obj instanceof Func) {
+						((Func) obj).resetCalls();
+					}
+				}
+				return "";
+			default:
+				return "Error -> Usage: -stats [lex|parse|eval|request|irc|calls|cache|reset]";
+		}
+	}
+
+	/**
+	 * Builtins and this user's functions that were called, most called first.
+	 */
+	private String calls() {
+		List<Map.Entry<String, Long>> calls = new ArrayList<Map.Entry<String, Long>>();
+		for (Builtin builtin : interpreter.getBuiltins().values()) {
+			if (builtin.getCalls() > 0) {
+				calls.add(new AbstractMap.SimpleEntry<String, Long>(builtin.getName(),
+						builtin.getCalls()));
+			}
+		}
+		for (Map.Entry<String, Obj> entry : interpreter.getScope().getVariables().entrySet()) {
+			if (entry.getValue() instanceof Func && ((Func) entry.getValue()).getCalls() > 0) {
+				calls.add(new AbstractMap.SimpleEntry<String, Long>(entry.getKey(),
+						((Func) entry.getValue()).getCalls()));
+			}
+		}
+		calls.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+		StringBuilder out = new StringBuilder();
+		for (Map.Entry<String, Long> entry : calls) {
+			if (out.length() > 0) {
+				out.append(", ");
+			}
+			out.append(entry.getKey()).append(' ').append(entry.getValue());
+		}
+		return (out.length() > 0) ? out.toString() : "No calls";
+	}
+
+	/**
+	 * -memo lists the memoized functions, -memo f [capacity] turns caching on
+	 * for f and -memo f off turns it off.
+	 */
+	private String memo(String[] args) {
+		try {
+			if (args.length == 1) {
+				StringBuilder out = new StringBuilder();
+				for (Map.Entry<String, Memo> entry : interpreter.getMemos().entrySet()) {
+					if (out.length() > 0) {
+						out.append("; ");
+					}
+					out.append(entry.getKey()).append(": ").append(entry.getValue());
+				}
+				return out.toString();
+			}
+
+			if (args.length > 2 && args[2].equals("off")) {
+				interpreter.setMemoized(args[1], false, 0);
+			} else {
+				int capacity = (args.length > 2) ? Integer.parseInt(args[2]) : Memo.DEFAULT_CAPACITY;
+				interpreter.setMemoized(args[1], true, capacity);
+			}
+			return "";
+		} catch (Exception e) {
+			return String.format("Error -> %s", e.getMessage());
+		}
+	}
+
+}
@@ -6,19 +6,26 @@
 
 package advancedjavacalculator;
 
-import java.lang.reflect.Method;
+import java.io.IOException;
 import java.math.MathContext;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import advancedjavacalculator.Expr.AssignExpr;
 import advancedjavacalculator.Expr.BinaryOpExpr;
 import advancedjavacalculator.Expr.CallExpr;
+import advancedjavacalculator.Expr.ConstantExpr;
 import advancedjavacalculator.Expr.GroupExpr;
 import advancedjavacalculator.Expr.LiteralExpr;
+import advancedjavacalculator.Expr.SlotExpr;
 import advancedjavacalculator.Token.TokenType;
+import advancedjavacalculator.Type.DoubleNum;
 import advancedjavacalculator.Type.Func;
 import advancedjavacalculator.Type.Num;
 import advancedjavacalculator.Type.Obj;
@@ -28,19 +35,155 @@ public class Interpreter {
 
 	public static class Scope {
 
-		private Map<String, Num> constants = new HashMap<String, Num>();
-		private Map<String, Obj> variables = new HashMap<String, Obj>();
+		private final Map<String, Constant> constants;
+		private final Map<String, Obj> variables = new ConcurrentHashMap<String, Obj>();
+		private int maxVariables = Integer.MAX_VALUE;
+		private long maxSize = Long.MAX_VALUE;
+		private long size;
+		private volatile long version;
+		private volatile Snapshot snapshot;
+		private int unloaded;
+		// Names looked up that the snapshot doesn't have
+		private final Map<String, Boolean> missing = new ConcurrentHashMap<String, Boolean>();
+
+		public Scope() {
+			this(new ConcurrentHashMap<String, Constant>());
+		}
+
+		/**
+		 * Creates a scope with its own variables on top of a constants map that
+		 * may be shared with other scopes.
+		 */
+		public Scope(Map<String, Constant> constants) {
+			this.constants = constants;
+		}
+
+		public void addVariable(String name, Obj obj) throws CalcException {
+			synchronized (this) {
+				Obj old = lookup(name);
+				if (old == null && variables.size() + unloaded >= maxVariables) {
+					throw new CalcException("Interpreter", "Too many variables, the limit is %d",
+							maxVariables);
+				}
+
+				long newSize = size + obj.estimateSize() - (old == null ? 0 : old.estimateSize());
+				if (newSize > maxSize) {
+					throw new CalcException("Interpreter", "Not enough memory left for %s", name);
+				}
+
+				variables.put(name, obj);
+				size = newSize;
+				version++;
+			}
+		}
+
+		public synchronized void clearVariables() {
+			variables.clear();
+			snapshot = null;
+			unloaded = 0;
+			missing.clear();
+			size = 0;
+			version++;
+		}
+
+		/**
+		 * Replaces the variables with those saved in a snapshot. Each is only
+		 * read from the snapshot the first time it is looked up, until then
+		 * the bytes it takes up there count towards the limits.
+		 */
+		public synchronized void restore(Snapshot snapshot) throws CalcException {
+			if (snapshot.size() > maxVariables) {
+				throw new CalcException("Interpreter", "Too many variables, the limit is %d",
+						maxVariables);
+			} else if (snapshot.getDataSize() > maxSize) {
+				throw new CalcException("Interpreter", "Not enough memory left for the snapshot");
+			}
+
+			variables.clear();
+			missing.clear();
+			this.snapshot = (snapshot.size() > 0) ? snapshot : null;
+			unloaded = snapshot.size();
+			size = snapshot.getDataSize();
+			version++;
+		}
+
+		/**
+		 * Returns the snapshot the scope was restored from while some of it
+		 * hasn't been looked up yet, or null.
+		 */
+		Snapshot getSnapshot() {
+			return snapshot;
+		}
+
+		private Obj lookup(String name) throws CalcException {
+			Obj obj = variables.get(name);
+			if (obj == null && snapshot != null && !missing.containsKey(name)) {
+				obj = load(name);
+			}
+			return obj;
+		}
+
+		private Obj lookupNoError(String name) {
+			try {
+				return lookup(name);
+			} catch (CalcException e) {
+				return null;
+			}
+		}
 
-		public void addVariable(String name, Obj obj) {
+		private synchronized Obj load(String name) throws CalcException {
+			Obj obj = variables.get(name);
+			Snapshot snapshot = this.snapshot;
+			if (obj != null || snapshot == null) {
+				return obj;
+			}
+
+			int entry = snapshot.find(name);
+			if (entry < 0) {
+				missing.put(name, Boolean.TRUE);
+				return null;
+			}
+			obj = snapshot.read(entry, new Optimizer(this));
 			variables.put(name, obj);
+			size += obj.estimateSize() - snapshot.getLength(entry);
+			if (--unloaded == 0) {
+				this.snapshot = null;
+				missing.clear();
+			}
+			return obj;
+		}
+
+		/**
+		 * Returns a number that changes whenever a variable is added,
+		 * redefined or cleared.
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * Limits how many variables this scope can hold and roughly how many
+		 * bytes they may take up together.
+		 */
+		public synchronized void setLimits(int maxVariables, long maxSize) {
+			this.maxVariables = maxVariables;
+			this.maxSize = maxSize;
+		}
+
+		public synchronized long getSize() {
+			return size;
 		}
 
 		public void addConstant(String name, Num num) {
-			constants.put(name, num);
+			constants.put(name, new Constant(num));
+		}
+
+		public void addConstant(String name, Constant constant) {
+			constants.put(name, constant);
 		}
 
 		public Obj getVariable(String name) throws CalcException {
-			Obj obj = variables.get(name);
+			Obj obj = lookup(name);
 			if (obj == null) {
 				throw new CalcException("Interpreter", "The variable %s was not found", name);
 			}
@@ -48,19 +191,15 @@ public class Interpreter {
 		}
 
 		public Obj getVariableNoError(String name) {
-			try {
-				return getVariable(name);
-			} catch (CalcException e) {
-				return null;
-			}
+			return lookupNoError(name);
 		}
 
 		public Num getNumber(String name) throws CalcException {
-			Obj obj = variables.get(name);
+			Obj obj = lookup(name);
 
 			if (obj == null) {
 				throw new CalcException("Interpreter", "The variable %s was not found", name);
-			} else if (obj.getType() != Type.Num) {
+			} else if (!obj.isNumber()) {
 				throw new CalcException("Interpreter", "Expected the variable %s to have type Num",
 						name);
 			}
@@ -69,15 +208,12 @@ public class Interpreter {
 		}
 
 		public Num getNumberNoError(String name) {
-			try {
-				return getNumber(name);
-			} catch (CalcException e) {
-				return null;
-			}
+			Obj obj = lookupNoError(name);
+			return (obj != null && obj.isNumber()) ? (Num) obj : null;
 		}
 
 		public Func getFunction(String name) throws CalcException {
-			Obj obj = variables.get(name);
+			Obj obj = lookup(name);
 
 			if (obj == null) {
 				throw new CalcException("Interpreter", "The function %s was not found", name);
@@ -90,100 +226,210 @@ public class Interpreter {
 		}
 
 		public Func getFunctionNoError(String name) {
-			try {
-				return getFunction(name);
-			} catch (CalcException e) {
-				return null;
-			}
+			Obj obj = lookupNoError(name);
+			return (obj != null && obj.getType() == Type.Func) ? (Func) obj : null;
 		}
 
-		public Num getConstant(String name) throws CalcException {
-			Num num = constants.get(name);
-			if (num == null) {
+		/**
+		 * Returns the value of a constant rounded to mathContext.
+		 */
+		public Num getConstant(String name, MathContext mathContext) throws CalcException {
+			Constant constant = constants.get(name);
+			if (constant == null) {
 				throw new CalcException("Interpreter", "The constant %s was not found", name);
 			}
 
-			return num;
+			return constant.getNumber(mathContext);
 		}
 
-		public Num getConstantNoError(String name) {
-			try {
-				return getConstant(name);
-			} catch (CalcException e) {
-				return null;
+		public Constant getConstantNoError(String name) {
+			return constants.get(name);
+		}
+
+		/**
+		 * Constants take precedence over variables of the same name.
+		 */
+		public Obj getConstantOrVariable(String name, MathContext mathContext)
+				throws CalcException {
+			Constant constant = constants.get(name);
+			if (constant == null) {
+				return getVariable(name);
 			}
+			return constant.getNumber(mathContext);
 		}
 
-		public Num getNumberOrConstant(String name) throws CalcException {
+		public Num getNumberOrConstant(String name, MathContext mathContext) throws CalcException {
 			Num num = getNumberNoError(name);
 			if (num == null) {
-				num = getConstantNoError(name);
-				if (num == null) {
+				Constant constant = constants.get(name);
+				if (constant == null) {
 					throw new CalcException("Interpreter", "The variable %s was not found", name);
 				}
+				num = constant.getNumber(mathContext);
 			}
 
 			return num;
 		}
 
-		public Map<String, Num> getConstants() {
+		public Map<String, Constant> getConstants() {
 			return constants;
 		}
 
+		/**
+		 * Changes made through this map bypass the limits, use
+		 * {@link #addVariable(String, Obj)} and {@link #clearVariables()}. It
+		 * lacks what hasn't been looked up yet from a snapshot.
+		 */
 		public Map<String, Obj> getVariables() {
 			return variables;
 		}
 
 	}
 
-	public MathContext mathContext = MathContext.DECIMAL128;
+	public enum NumberMode {
+		Exact, Fast, Adaptive
+	}
 
-	private final Scope scope = new Scope();
-	private Map<String, Method> builtinMethods = new HashMap<String, Method>();
+	public MathContext mathContext = MathContext.DECIMAL128;
+	private NumberMode numberMode = NumberMode.Exact;
+
+	private final Scope scope;
+	private final Map<String, Builtin> builtins;
+	private final Compiler compiler = new Compiler(this);
+	private final DoubleEvaluator doubleEvaluator = new DoubleEvaluator(this);
+	private final IntervalEvaluator intervalEvaluator = new IntervalEvaluator(this);
+	private final ParallelEvaluator parallelEvaluator = new ParallelEvaluator(this);
+	private final Optimizer optimizer;
+	private ParseCache parseCache;
+	private boolean compiling = false;
+	private boolean parallel = Runtime.getRuntime().availableProcessors() > 1;
+	private volatile Sheet sheet;
+	private Budget budget = Budget.UNLIMITED;
 
 	public Interpreter() {
+		scope = new Scope();
+		builtins = new ConcurrentHashMap<String, Builtin>();
+		optimizer = new Optimizer(scope);
+		parseCache = new ParseCache();
+
+		BuiltinMethods.register(this);
+
+		scope.addConstant("E", Constant.E);
+		scope.addConstant("PI", Constant.PI);
+		scope.addConstant("LN2", Constant.LN2);
+		scope.addConstant("LN10", Constant.LN10);
+	}
+
+	/**
+	 * Creates an interpreter with its own variables and settings that shares
+	 * the constants, builtins and parse cache of another one. Builtins and
+	 * constants added to either are seen by both.
+	 */
+	public Interpreter(Interpreter shared) {
+		scope = new Scope(shared.scope.getConstants());
+		builtins = shared.builtins;
+		optimizer = new Optimizer(scope);
+		parseCache = shared.parseCache;
+
+		mathContext = shared.mathContext;
+		numberMode = shared.numberMode;
+		compiling = shared.compiling;
+		parallel = shared.parallel;
+		setReactive(shared.isReactive());
+		budget = shared.budget;
+	}
+
+	/**
+	 * Evaluates a statement, timing it for {@link Stats}.
+	 */
+	public Obj interpretExpr(Expr expr, Scope scope) throws CalcException {
+		Stats.EvalEvent event = new Stats.EvalEvent();
+		event.begin();
+		long start = System.nanoTime();
+
+		Obj obj;
+		boolean metered = Budget.begin(budget);
 		try {
-			addBuiltinMethod(BuiltinMethods.class, "sqrt");
-			addBuiltinMethod(BuiltinMethods.class, "cbrt");
-			addBuiltinMethod(BuiltinMethods.class, "root");
-		} catch (Exception e) {
-			throw new RuntimeException(e.getLocalizedMessage());
+			if (numberMode != NumberMode.Fast) {
+				budget.estimate(expr, scope, mathContext);
+			}
+			Sheet sheet = this.sheet;
+			if (sheet != null && sheet.getScope() == scope) {
+				sheet.refresh(expr);
+			}
+			obj = evaluate(expr, scope);
+		} finally {
+			if (metered) {
+				Budget.end();
+			}
 		}
 
-		scope.addConstant("E", new RealNum(Double.toString(Math.E), mathContext));
-		scope.addConstant("PI", new RealNum(Double.toString(Math.PI), mathContext));
+		Stats.EVAL.record(System.nanoTime() - start);
+		if (event.shouldCommit()) {
+			event.mode = numberMode.name();
+			event.precision = mathContext.getPrecision();
+			event.commit();
+		}
+		return obj;
 	}
 
-	public Obj interpretExpr(Expr expr, Scope scope) throws CalcException {
-		String match = expr.getToken().getMatch();
+	private Obj evaluate(Expr expr, Scope scope) throws CalcException {
+		if (numberMode == NumberMode.Adaptive && !(expr instanceof AssignExpr)
+				&& expr.getToken().getType() != TokenType.Ident) {
+			Num num = intervalEvaluator.eval(expr, scope, mathContext);
+			if (num != null) {
+				return num;
+			}
+		}
+
+		if (!parallel || numberMode == NumberMode.Fast || !parallelEvaluator.begin(expr, scope)) {
+			return interpret(expr, scope, null);
+		}
+		try {
+			return interpret(expr, scope, null);
+		} finally {
+			ParallelEvaluator.end();
+		}
+	}
+
+	/**
+	 * @param frame the arguments of the function whose body is being evaluated,
+	 *            or null at the top level
+	 */
+	Obj interpret(Expr expr, Scope scope, Obj[] frame) throws CalcException {
+		checkCancelled();
 		TokenType tokenType = expr.getToken().getType();
 
-		if (expr instanceof LiteralExpr) {
+		if (numberMode == NumberMode.Fast && !(expr instanceof AssignExpr)
+				&& tokenType != TokenType.Ident) {
+			return new DoubleNum(doubleEvaluator.eval(expr, scope, DoubleEvaluator.toFrame(frame)));
+		}
+
+		if (expr instanceof SlotExpr) {
+			return frame[((SlotExpr) expr).getSlot()];
+		} else if (expr instanceof LiteralExpr) {
 			if (tokenType == TokenType.Ident) {
-				Obj obj = scope.getConstantNoError(match);
-				if (obj == null) {
-					obj = scope.getVariable(match);
-				}
-				return obj;
+				return scope.getConstantOrVariable(expr.getToken().getMatch(), mathContext);
 			} else {
-				if (match.startsWith("0x")) {
-					match = match.substring(2, match.length());
-					return new RealNum(Integer.toString(Integer.parseInt(match, 16)), mathContext);
-				} else {
-					return new RealNum(match, mathContext);
-				}
+				return ((LiteralExpr) expr).getNumber(mathContext);
 			}
+		} else if (expr instanceof ConstantExpr) {
+			return evalConstant((ConstantExpr) expr, scope);
 		} else if (expr instanceof GroupExpr) {
-			return interpretExpr(((GroupExpr) expr).getExpr(), scope);
+			return interpret(((GroupExpr) expr).getExpr(), scope, frame);
 		} else if (expr instanceof BinaryOpExpr) {
 			BinaryOpExpr binaryOp = (BinaryOpExpr) expr;
+			Obj[] operands = ParallelEvaluator.isActive() ? parallelEvaluator.evalAll(Arrays.asList(binaryOp
+					.getLeftExpr(), binaryOp.getRightExpr()), scope, frame) : null;
 
-			Obj leftObj = interpretExpr(binaryOp.getLeftExpr(), scope);
+			Obj leftObj = (operands != null) ? operands[0] : interpret(binaryOp.getLeftExpr(),
+					scope, frame);
 			if (!leftObj.isNumber()) {
 				throw new CalcException("Interpreter", "Invalid left type '%s' for a binary operation", leftObj.getType());
 			}
 
-			Obj rightObj = interpretExpr(binaryOp.getRightExpr(), scope);
+			Obj rightObj = (operands != null) ? operands[1] : interpret(binaryOp.getRightExpr(),
+					scope, frame);
 			if (!rightObj.isNumber()) {
 				throw new CalcException("Interpreter", "Invalid right type '%s' for a binary operation", rightObj.getType());
 			}
@@ -191,7 +437,7 @@ public class Interpreter {
 			Num left = (Num) leftObj;
 			Num right = (Num) rightObj;
 
-			switch (expr.getToken().getType()) {
+			switch (tokenType) {
 				case Plus:
 					return left.add(right);
 				case Minus:
@@ -203,7 +449,7 @@ public class Interpreter {
 				case Mod:
 					return left.mod(right);
 				case Pow:
-					return left.pow(right);
+					return left.pow(right, mathContext);
 				default:
 					break;
 			}
@@ -211,26 +457,18 @@ public class Interpreter {
 		} else if (expr instanceof CallExpr) {
 			CallExpr call = (CallExpr) expr;
 			String name = call.getExpr().toString();
-			Method method = builtinMethods.get(name);
-			if (method != null) {
-				List<Obj> args = new ArrayList<Obj>();
-				for (Expr arg : call.getArguments()) {
-					args.add(interpretExpr(arg, scope));
+			Builtin builtin = builtins.get(name);
+			if (builtin != null) {
+				List<Expr> arguments = call.getArguments();
+				switch (arguments.size()) {
+					case 1:
+						return builtin.call(this, interpret(arguments.get(0), scope, frame));
+					case 2:
+						return builtin.call(this, interpret(arguments.get(0), scope, frame),
+								interpret(arguments.get(1), scope, frame));
+					default:
+						return builtin.call(this, interpretAll(arguments, scope, frame));
 				}
-
-				Obj ret;
-				try {
-					ret = (Obj) method.invoke(null,
-							new Object[] { this, args.toArray(new Obj[args.size()]) });
-				} catch (Exception e) {
-					throw new CalcException("Interpreter", e.getCause().getLocalizedMessage());
-				}
-
-				if (!ret.isNumber()) {
-					throw new CalcException("Interpreter", "Invalid return from builtin method %s",
-							name);
-				}
-				return (Num) ret;
 			}
 
 			Func func = scope.getFunction(name);
@@ -240,28 +478,30 @@ public class Interpreter {
 						"Number of arguments given doesn't match expected number");
 			}
 
-			Scope funcScope = new Scope();
-			funcScope.getConstants().putAll(this.scope.getConstants());
-			for (int i = 0; i < func.getArguments().size(); i++) {
-				funcScope.addVariable(func.getArguments().get(i),
-						interpretExpr(call.getArguments().get(i), scope));
-			}
-
-			Obj ret = interpretExpr(func.getBody(), funcScope);
-			if (!ret.isNumber()) {
-				throw new CalcException("Interpreter", "Invalid return from function %s", name);
-			}
-			return (Num) ret;
+			return callFunction(name, func, scope, interpretAll(call.getArguments(), scope, frame));
 		} else if (expr instanceof AssignExpr) {
 			AssignExpr assign = (AssignExpr) expr;
 
-			if (assign.getDef().getToken().getType() == TokenType.Ident) {
-				Obj obj = interpretExpr(assign.getVal(), scope);
-				if (obj.getType() != Type.Num) {
+			if (assign.getDef() instanceof SlotExpr) {
+				Obj obj = interpret(assign.getVal(), scope, frame);
+				if (!obj.isNumber()) {
+					throw new CalcException("Interpreter", "Invalid value for variable %s", assign
+							.getDef().toString());
+				}
+				frame[((SlotExpr) assign.getDef()).getSlot()] = obj;
+				return obj;
+			} else if (assign.getDef().getToken().getType() == TokenType.Ident) {
+				Obj obj = (frame == null) ? evaluate(assign.getVal(), scope) : interpret(
+						assign.getVal(), scope, frame);
+				if (!obj.isNumber()) {
 					throw new CalcException("Interpreter", "Invalid value for variable %s", assign
 							.getDef().toString());
 				}
 				scope.addVariable(assign.getDef().toString(), obj);
+				Sheet sheet = this.sheet;
+				if (frame == null && sheet != null && sheet.getScope() == scope) {
+					sheet.assigned(assign.getDef().toString(), assign.getVal());
+				}
 				return obj;
 			} else {
 				CallExpr call = (CallExpr) assign.getDef();
@@ -270,8 +510,22 @@ public class Interpreter {
 					args.add(arg.toString());
 				}
 
-				Func func = new Func(args, assign.getVal());
-				scope.addVariable(call.getExpr().toString(), func);
+				if (Optimizer.definesFunction(assign.getVal())) {
+					throw new CalcException("Interpreter",
+							"A function can't be defined inside another one");
+				}
+
+				String name = call.getExpr().toString();
+				Func func = new Func(args, assign.getVal(), optimizer.optimize(assign.getVal(), args));
+				Func old = scope.getFunctionNoError(name);
+				if (old != null && old.getMemo() != null && Memo.isPure(this, scope, func)) {
+					func.setMemo(new Memo(func, old.getMemo().getCapacity()));
+				}
+				scope.addVariable(name, func);
+				Sheet sheet = this.sheet;
+				if (sheet != null && sheet.getScope() == scope) {
+					sheet.defined(name);
+				}
 				return func;
 			}
 		}
@@ -280,10 +534,157 @@ public class Interpreter {
 
 	}
 
+	/**
+	 * Evaluates the arguments of a call, in parallel if that is worth it.
+	 */
+	private Obj[] interpretAll(List<Expr> exprs, Scope scope, Obj[] frame) throws CalcException {
+		Obj[] objs = ParallelEvaluator.isActive() ? parallelEvaluator.evalAll(exprs, scope, frame) : null;
+		if (objs == null) {
+			objs = new Obj[exprs.size()];
+			for (int i = 0; i < objs.length; i++) {
+				objs[i] = interpret(exprs.get(i), scope, frame);
+			}
+		}
+		return objs;
+	}
+
+	Num evalConstant(ConstantExpr constant, Scope scope) throws CalcException {
+		Num num = constant.getNumber(mathContext);
+		if (num == null) {
+			Obj obj = evaluate(constant.getExpr(), scope);
+			if (!obj.isNumber()) {
+				throw new CalcException("Interpreter", "Invalid constant type '%s'", obj.getType());
+			}
+			num = (Num) obj;
+			constant.setNumber(mathContext, num);
+		}
+		return num;
+	}
+
+	/**
+	 * Long calculations call this between steps. It gives up once the thread
+	 * running the calculation has been interrupted, for instance by the timeout
+	 * in {@link RequestExecutor}, or on a forked thread, the thread it was
+	 * forked from.
+	 */
+	public static void checkCancelled() throws CalcException {
+		if (Thread.currentThread().isInterrupted() || ParallelEvaluator.isCancelled()) {
+			throw new CalcException("Interpreter", "Calculation cancelled");
+		}
+		Budget.step();
+	}
+
+	Builtin getBuiltin(String name) {
+		return builtins.get(name);
+	}
+
+	/**
+	 * Evaluates the body of a function. The arguments are passed as a frame,
+	 * which the body reads through its {@link SlotExpr}s, so no scope is created
+	 * for the call. The variables the body assigns get slots in the frame too.
+	 * Anything else the body refers to is looked up in the scope the function
+	 * is called from.
+	 */
+	Num callFunction(String name, Func func, Scope scope, Obj[] args) throws CalcException {
+		checkCancelled();
+		func.countCall();
+
+		Memo memo = func.getMemo();
+		long version = scope.getVersion();
+		if (memo != null) {
+			Num cached = memo.get(this, scope, version, args);
+			if (cached != null) {
+				return cached;
+			}
+		}
+
+		if (func.getFrameSize() > args.length) {
+			args = Arrays.copyOf(args, func.getFrameSize());
+		}
+
+		Obj ret;
+		if (compiling) {
+			Compiler.Compiled body = func.getCompiled();
+			if (body == null) {
+				body = compiler.compile(func.getCode());
+				func.setCompiled(body);
+			}
+			ret = body.eval(scope, args);
+		} else {
+			ret = interpret(func.getCode(), scope, args);
+		}
+
+		if (!ret.isNumber()) {
+			throw new CalcException("Interpreter", "Invalid return from function %s", name);
+		}
+		if (memo != null) {
+			memo.put(this, scope, version, args, (Num) ret);
+		}
+		return (Num) ret;
+	}
+
+	/**
+	 * Turns result caching on or off for a user function. The cache is
+	 * dropped when the function is redefined, but stays on for the new
+	 * definition.
+	 */
+	public void setMemoized(String name, boolean memoized, int capacity) throws CalcException {
+		Func func = scope.getFunction(name);
+		if (!memoized) {
+			func.setMemo(null);
+		} else if (!Memo.isPure(this, scope, func)) {
+			throw new CalcException("Interpreter", "The function %s assigns variables", name);
+		} else if (func.getMemo() == null || func.getMemo().getCapacity() != capacity) {
+			func.setMemo(new Memo(func, capacity));
+		}
+	}
+
+	/**
+	 * Returns the memoized functions in this interpreter's scope by name.
+	 */
+	public Map<String, Memo> getMemos() {
+		Map<String, Memo> memos = new TreeMap<String, Memo>();
+		for (Map.Entry<String, Obj> entry : scope.getVariables().entrySet()) {
+			if (entry.getValue() instanceof Func && ((Func) entry.getValue()).getMemo() != null) {
+				memos.put(entry.getKey(), ((Func) entry.getValue()).getMemo());
+			}
+		}
+		return memos;
+	}
+
 	public Scope getScope() {
 		return scope;
 	}
 
+	/**
+	 * Saves the variables and functions, see {@link Snapshot}. In reactive
+	 * mode they are brought up to date first, and any that can't be are saved
+	 * with their last value.
+	 */
+	public void save(Path path) throws IOException {
+		Sheet sheet = this.sheet;
+		if (sheet != null) {
+			try {
+				sheet.update();
+			} catch (CalcException e) {
+				// Saved as they are.
+			}
+		}
+		Snapshot.write(scope, path);
+	}
+
+	/**
+	 * Replaces the variables and functions with those of a snapshot, see
+	 * {@link Scope#restore(Snapshot)}. Reactive mode starts over with no
+	 * formulas.
+	 */
+	public void restore(Snapshot snapshot) throws CalcException {
+		scope.restore(snapshot);
+		if (sheet != null) {
+			sheet = new Sheet(this, scope);
+		}
+	}
+
 	public MathContext getMathContext() {
 		return mathContext;
 	}
@@ -292,13 +693,147 @@ public class Interpreter {
 		this.mathContext = matchContext;
 	}
 
+	public Budget getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Limits the work each statement may do, see {@link Budget}.
+	 */
+	public void setBudget(Budget budget) {
+		this.budget = budget;
+	}
+
+	public ParseCache getParseCache() {
+		return parseCache;
+	}
+
+	public void setParseCache(ParseCache parseCache) {
+		this.parseCache = parseCache;
+	}
+
+	/**
+	 * Runs the optimizer over a tree. See {@link Optimizer} for what it does.
+	 */
+	public Expr optimize(Expr expr) {
+		return optimizer.optimize(expr, null);
+	}
+
+	/**
+	 * Optimizes a function body, resolving its parameters to frame slots.
+	 */
+	public Expr optimize(Expr expr, List<String> params) {
+		return optimizer.optimize(expr, params);
+	}
+
+	public NumberMode getNumberMode() {
+		return numberMode;
+	}
+
+	/**
+	 * Switches between exact {@link RealNum} arithmetic in the current
+	 * MathContext and {@link NumberMode#Fast}, which evaluates on primitive
+	 * doubles and produces {@link DoubleNum} results.
+	 * {@link NumberMode#Adaptive} gives the exact results rounded to the
+	 * MathContext, but tries bounded double arithmetic first and only
+	 * evaluates exactly when that can't decide the rounded result.
+	 */
+	public void setNumberMode(NumberMode numberMode) {
+		this.numberMode = numberMode;
+	}
+
+	public boolean isCompiling() {
+		return compiling;
+	}
+
+	/**
+	 * Turns the compile tier on or off. While it is on, user function bodies are
+	 * compiled on their first call and the compiled form is reused afterwards.
+	 */
+	public void setCompiling(boolean compiling) {
+		this.compiling = compiling;
+	}
+
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	/**
+	 * Turns parallel evaluation on or off. While it is on, operands and
+	 * arguments that are expensive enough are evaluated on several threads,
+	 * see {@link ParallelEvaluator}, and so are the statements of scripts,
+	 * see {@link ScriptExecutor}. It starts out on when there is more than
+	 * one processor.
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	public boolean isReactive() {
+		return sheet != null;
+	}
+
+	/**
+	 * Turns reactive mode on or off. While it is on, assigning a variable or
+	 * defining a function leaves what depends on it to be worked out again
+	 * the next time it is read, see {@link Sheet}. Turning it on starts from
+	 * the variables as they are, with no formulas.
+	 */
+	public void setReactive(boolean reactive) {
+		if (reactive != isReactive()) {
+			sheet = reactive ? new Sheet(this, scope) : null;
+		}
+	}
+
+	/**
+	 * Returns the sheet of reactive mode, or null while it is off.
+	 */
+	public Sheet getSheet() {
+		return sheet;
+	}
+
+	ParallelEvaluator getParallelEvaluator() {
+		return parallelEvaluator;
+	}
+
+	/**
+	 * Returns how many operands and statements were evaluated on another
+	 * thread.
+	 */
+	public long getForks() {
+		return parallelEvaluator.getForks();
+	}
+
 	public void addBuiltinMethod(Class<?> clazz, String methodName) throws Exception {
 		addBuiltinMethod(clazz, methodName, methodName);
 	}
 
 	public void addBuiltinMethod(Class<?> clazz, String methodName, String alias) throws Exception {
-		builtinMethods.put(alias,
-				clazz.getMethod(methodName, new Class<?>[] { Interpreter.class, Obj[].class }));
+		addBuiltin(Builtin.reflective(alias, clazz, methodName));
+	}
+
+	public void addBuiltin(Builtin builtin) {
+		builtins.put(builtin.getName(), builtin);
+	}
+
+	public Map<String, Builtin> getBuiltins() {
+		return Collections.unmodifiableMap(builtins);
+	}
+
+	/**
+	 * Returns how many evaluations in {@link NumberMode#Adaptive} were
+	 * answered with doubles.
+	 */
+	public long getCertified() {
+		return intervalEvaluator.getCertified();
+	}
+
+	/**
+	 * Returns how many evaluations in {@link NumberMode#Adaptive} fell back to
+	 * the exact path.
+	 */
+	public long getEscalated() {
+		return intervalEvaluator.getEscalated();
 	}
 
 }
@@ -0,0 +1,316 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import advancedjavacalculator.Expr.BinaryOpExpr;
+import advancedjavacalculator.Expr.CallExpr;
+import advancedjavacalculator.Expr.ConstantExpr;
+import advancedjavacalculator.Expr.GroupExpr;
+import advancedjavacalculator.Expr.LiteralExpr;
+import advancedjavacalculator.Expr.SlotExpr;
+import advancedjavacalculator.Interpreter.Scope;
+import advancedjavacalculator.Token.TokenType;
+import advancedjavacalculator.Type.DoubleNum;
+import advancedjavacalculator.Type.Func;
+import advancedjavacalculator.Type.Num;
+import advancedjavacalculator.Type.Obj;
+import advancedjavacalculator.Type.RealNum;
+
+/**
+ * The first try for {@link Interpreter.NumberMode#Adaptive}. Every value is
+ * carried as a pair of doubles that the exact value is known to lie between.
+ * Each operation rounds its lower bound down and its upper bound up, working
+ * out which way the double result was rounded from its exact error (TwoSum for
+ * sums, fma for products and quotients).
+ *
+ * If both bounds round to the same number in the MathContext, that is the
+ * correctly rounded result. Otherwise, or when a bound can't be kept (a
+ * division by an interval containing zero, a builtin without a bounded
+ * kernel, an overflow), it gives up and the caller evaluates exactly.
+ */
+final class IntervalEvaluator {
+
+	// Whole powers up to this are done by repeated multiplication.
+	private static final int MAX_WHOLE_POWER = 1024;
+
+	private final Interpreter interpreter;
+	private final AtomicLong certified = new AtomicLong();
+	private final AtomicLong escalated = new AtomicLong();
+
+	IntervalEvaluator(Interpreter interpreter) {
+		this.interpreter = interpreter;
+	}
+
+	/**
+	 * Returns the value of expr rounded to the MathContext, or null if it
+	 * couldn't be pinned down with doubles.
+	 */
+	Num eval(Expr expr, Scope scope, MathContext mathContext) throws CalcException {
+		Bounds bounds = new Bounds();
+		if (bounds.eval(expr, scope, null) && Double.isFinite(bounds.lo)
+				&& Double.isFinite(bounds.hi)) {
+			BigDecimal lo = new BigDecimal(bounds.lo).round(mathContext);
+			if (bounds.lo == bounds.hi || lo.compareTo(new BigDecimal(bounds.hi).round(mathContext)) == 0) {
+				certified.incrementAndGet();
+				return new RealNum(lo);
+			}
+		}
+
+		escalated.incrementAndGet();
+		return null;
+	}
+
+	long getCertified() {
+		return certified.get();
+	}
+
+	long getEscalated() {
+		return escalated.get();
+	}
+
+	/**
+	 * The bounds of the value evaluated last. Each top level evaluation gets
+	 * its own, so evaluators can be shared between threads.
+	 */
+	private final class Bounds {
+
+		private double lo, hi;
+
+		/**
+		 * @param frame the bounds of the arguments of the function being
+		 *            evaluated, lower and upper for each, or null at the top level
+		 * @return false to give up
+		 */
+		boolean eval(Expr expr, Scope scope, double[] frame) throws CalcException {
+			if (expr instanceof SlotExpr) {
+				int slot = ((SlotExpr) expr).getSlot();
+				lo = frame[2 * slot];
+				hi = frame[2 * slot + 1];
+				return true;
+			} else if (expr instanceof LiteralExpr) {
+				LiteralExpr literal = (LiteralExpr) expr;
+				if (literal.isNumber()) {
+					return set(literal.getNumber(interpreter.getMathContext()));
+				}
+				return set(scope.getConstantOrVariable(expr.getToken().getMatch(),
+						interpreter.getMathContext()));
+			} else if (expr instanceof ConstantExpr) {
+				return set(interpreter.evalConstant((ConstantExpr) expr, scope));
+			} else if (expr instanceof GroupExpr) {
+				return eval(((GroupExpr) expr).getExpr(), scope, frame);
+			} else if (expr instanceof BinaryOpExpr) {
+				BinaryOpExpr binaryOp = (BinaryOpExpr) expr;
+				if (!eval(binaryOp.getLeftExpr(), scope, frame)) {
+					return false;
+				}
+				double a = lo, b = hi;
+				if (!eval(binaryOp.getRightExpr(), scope, frame)) {
+					return false;
+				}
+				double c = lo, d = hi;
+
+				switch (expr.getToken().getType()) {
+					case Plus:
+						lo = addDown(a, c);
+						hi = addUp(b, d);
+						return true;
+					case Minus:
+						lo = addDown(a, -d);
+						hi = addUp(b, -c);
+						return true;
+					case Times:
+						return mul(a, b, c, d);
+					case Divide:
+						return div(a, b, c, d);
+					case Mod:
+						// % on doubles is exact, but only a point is safe since
+						// the result jumps at every multiple of the divisor.
+						if (a != b || c != d || c == 0) {
+							return false;
+						}
+						lo = hi = a % c;
+						return true;
+					case Pow:
+						return pow(a, b, c, d);
+					default:
+						return false;
+				}
+			} else if (expr instanceof CallExpr) {
+				return call((CallExpr) expr, scope, frame);
+			}
+
+			return false;
+		}
+
+		private boolean call(CallExpr call, Scope scope, double[] frame) throws CalcException {
+			Interpreter.checkCancelled();
+
+			String name = call.getExpr().toString();
+			List<Expr> arguments = call.getArguments();
+
+			Builtin builtin = interpreter.getBuiltin(name);
+			if (builtin != null) {
+				if (!builtin.isIncreasing() || arguments.size() != 1
+						|| !eval(arguments.get(0), scope, frame)) {
+					return false;
+				}
+				builtin.countCall();
+				lo = Math.nextDown(builtin.getDoubleUnary().applyAsDouble(lo));
+				hi = Math.nextUp(builtin.getDoubleUnary().applyAsDouble(hi));
+				return true;
+			}
+
+			Func func = scope.getFunction(name);
+			if (func.getArguments().size() != arguments.size()) {
+				throw new CalcException("Interpreter",
+						"Number of arguments given doesn't match expected number");
+			}
+
+			double[] args = new double[2 * arguments.size()];
+			for (int i = 0; i < arguments.size(); i++) {
+				if (!eval(arguments.get(i), scope, frame)) {
+					return false;
+				}
+				args[2 * i] = lo;
+				args[2 * i + 1] = hi;
+			}
+			func.countCall();
+			return eval(func.getCode(), scope, args);
+		}
+
+		private boolean set(Obj obj) {
+			switch (obj.getType()) {
+				case RealNum:
+					double[] bounds = ((RealNum) obj).getDoubleBounds();
+					lo = bounds[0];
+					hi = bounds[1];
+					return true;
+				case DoubleNum:
+					lo = hi = ((DoubleNum) obj).getNumber();
+					return true;
+				default:
+					return false;
+			}
+		}
+
+		private boolean mul(double a, double b, double c, double d) {
+			if (a == b && c == d) {
+				lo = mulDown(a, c);
+				hi = mulUp(a, c);
+			} else {
+				lo = Math.min(Math.min(mulDown(a, c), mulDown(a, d)),
+						Math.min(mulDown(b, c), mulDown(b, d)));
+				hi = Math.max(Math.max(mulUp(a, c), mulUp(a, d)), Math.max(mulUp(b, c), mulUp(b, d)));
+			}
+			return true;
+		}
+
+		private boolean div(double a, double b, double c, double d) {
+			if (c <= 0 && d >= 0) {
+				return false;
+			}
+			if (a == b && c == d) {
+				lo = divDown(a, c);
+				hi = divUp(a, c);
+			} else {
+				lo = Math.min(Math.min(divDown(a, c), divDown(a, d)),
+						Math.min(divDown(b, c), divDown(b, d)));
+				hi = Math.max(Math.max(divUp(a, c), divUp(a, d)), Math.max(divUp(b, c), divUp(b, d)));
+			}
+			return true;
+		}
+
+		private boolean pow(double a, double b, double c, double d) {
+			if (c == d && c == Math.rint(c) && Math.abs(c) <= MAX_WHOLE_POWER) {
+				// By squaring, like the exact path.
+				long n = (long) Math.abs(c);
+				double baseLo = a, baseHi = b;
+				double resultLo = 1, resultHi = 1;
+				while (n > 0) {
+					if ((n & 1) != 0) {
+						mul(resultLo, resultHi, baseLo, baseHi);
+						resultLo = lo;
+						resultHi = hi;
+					}
+					n >>= 1;
+					if (n > 0) {
+						mul(baseLo, baseHi, baseLo, baseHi);
+						// The square of an interval around zero can't go below it.
+						baseLo = (baseLo <= 0 && baseHi >= 0) ? 0 : lo;
+						baseHi = hi;
+					}
+				}
+				lo = resultLo;
+				hi = resultHi;
+				return c >= 0 || div(1, 1, lo, hi);
+			}
+
+			// x^y is monotonic in each argument for x > 0, so the extremes are
+			// at the corners. Math.pow is within one ulp.
+			if (a <= 0) {
+				return false;
+			}
+			double ac = Math.pow(a, c), ad = Math.pow(a, d), bc = Math.pow(b, c), bd = Math.pow(b, d);
+			lo = Math.nextDown(Math.min(Math.min(ac, ad), Math.min(bc, bd)));
+			hi = Math.nextUp(Math.max(Math.max(ac, ad), Math.max(bc, bd)));
+			return true;
+		}
+
+	}
+
+	/**
+	 * The error of s = a + b, exact as long as nothing overflowed.
+	 */
+	private static double sumError(double a, double b, double s) {
+		double bb = s - a;
+		return (a - (s - bb)) + (b - bb);
+	}
+
+	static double addDown(double a, double b) {
+		double s = a + b;
+		return (sumError(a, b, s) < 0) ? Math.nextDown(s) : s;
+	}
+
+	static double addUp(double a, double b) {
+		double s = a + b;
+		return (sumError(a, b, s) > 0) ? Math.nextUp(s) : s;
+	}
+
+	static double mulDown(double a, double b) {
+		double p = a * b;
+		return (Math.fma(a, b, -p) < 0) ? Math.nextDown(p) : p;
+	}
+
+	static double mulUp(double a, double b) {
+		double p = a * b;
+		return (Math.fma(a, b, -p) > 0) ? Math.nextUp(p) : p;
+	}
+
+	/**
+	 * The remainder a - q * b is exact, and the exact quotient is above q when
+	 * it has the sign of b.
+	 */
+	private static double quotientError(double a, double b, double q) {
+		return Math.fma(-q, b, a) * Math.signum(b);
+	}
+
+	static double divDown(double a, double b) {
+		double q = a / b;
+		return (quotientError(a, b, q) < 0) ? Math.nextDown(q) : q;
+	}
+
+	static double divUp(double a, double b) {
+		double q = a / b;
+		return (quotientError(a, b, q) > 0) ? Math.nextUp(q) : q;
+	}
+
+}
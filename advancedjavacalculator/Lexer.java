@@ -6,34 +6,154 @@
 
 package advancedjavacalculator;
 
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
+import advancedjavacalculator.Parser.TokenSource;
 import advancedjavacalculator.Token.TokenType;
 
-public class Lexer {
+/**
+ * Scans the input by index. No text is copied while lexing: symbols reuse the
+ * match string of their {@link TokenType} and numbers and identifiers keep
+ * offsets into the input until something asks for their text.
+ *
+ * A lexer made from a reader holds one line at a time. No token spans a line,
+ * so each line is lexed as if it were followed by a newline and the next one
+ * is read when it runs out. Token offsets are then relative to their line.
+ */
+public class Lexer implements TokenSource {
 	public static List<Token> doString(String input) throws CalcException {
 		Lexer lexer = new Lexer(input);
 
 		List<Token> tokens = new ArrayList<>();
-		Token token = lexer.nextToken();
+		Token token = lexer.next();
 		while (token.getType() != TokenType.Eof) {
 			tokens.add(token);
 
-			token = lexer.nextToken();
+			token = lexer.next();
 		}
 		tokens.add(token);
 
-		return filter(tokens);
+		return tokens;
 	}
 
-	private static List<Token> filter(List<Token> tokens) {
-		boolean consume = false;
-		List<Token> filterTokens = new ArrayList<>();
-		Iterator<Token> itr = tokens.iterator();
-		while (itr.hasNext()) {
-			Token token = itr.next();
+	private final static char EOF = '\0';
+	private final static char EOL = '\n';
+
+	// Character classes for ASCII, anything above falls back to Character.
+	private final static byte OTHER = 0, SPACE = 1, IDENT = 2, DIGIT = 3;
+	private final static byte[] CLASSES = new byte[128];
+
+	// Symbol token types by first character, longest match first.
+	private final static TokenType[][] SYMBOLS = new TokenType[128][];
+
+	static {
+		for (int c = 0; c < 128; c++) {
+			char ch = (char) c;
+			if (ch <= ' ') {
+				CLASSES[c] = SPACE;
+			} else if (Character.isLetter(ch) || ch == '_' || ch == '$') {
+				CLASSES[c] = IDENT;
+			} else if (Character.isDigit(ch)) {
+				CLASSES[c] = DIGIT;
+			}
+		}
+
+		List<List<TokenType>> symbols = new ArrayList<>();
+		for (int c = 0; c < 128; c++) {
+			symbols.add(new ArrayList<TokenType>());
+		}
+		for (TokenType type : TokenType.values()) {
+			String match = type.getSymbol();
+			if (match != null && match.charAt(0) > ' ') {
+				symbols.get(match.charAt(0)).add(type);
+			}
+		}
+		for (int c = 0; c < 128; c++) {
+			List<TokenType> types = symbols.get(c);
+			if (!types.isEmpty()) {
+				types.sort((a, b) -> b.getSymbol().length() - a.getSymbol().length());
+				SYMBOLS[c] = types.toArray(new TokenType[types.size()]);
+			}
+		}
+	}
+
+	private String input;
+	private int len;
+	private int index;
+
+	private BufferedReader reader;
+	private long line;
+
+	// Set after an operator, '(' , ',' or a newline so blank lines and line
+	// continuations do not produce Eol tokens.
+	private boolean skipEol;
+
+	Lexer(String input) {
+		this.input = input;
+
+		len = input.length();
+		index = 0;
+	}
+
+	Lexer(BufferedReader reader) {
+		this.reader = reader;
+
+		input = "";
+		len = 0;
+		index = 1;
+	}
+
+	/**
+	 * Returns the number of lines read so far from a reader.
+	 */
+	long getLine() {
+		return line;
+	}
+
+	/**
+	 * Skips the rest of the current line, used to resynchronize after an
+	 * error.
+	 */
+	void skipLine() {
+		int eol = input.indexOf(EOL, index);
+		index = (eol < 0) ? len + 1 : eol + 1;
+		skipEol = true;
+	}
+
+	private boolean refill() throws CalcException {
+		if (reader == null) {
+			return false;
+		}
+
+		String next;
+		try {
+			next = reader.readLine();
+		} catch (IOException e) {
+			throw new CalcException("Lexer", "Could not read input: %s", e.getMessage());
+		}
+		if (next == null) {
+			reader = null;
+			return false;
+		}
+
+		line++;
+		input = next;
+		len = next.length();
+		index = 0;
+		return true;
+	}
+
+	/**
+	 * Returns the next token, dropping newlines that follow an operator, an
+	 * open parenthesis, a comma or another newline.
+	 */
+	@Override
+	public Token next() throws CalcException {
+		for (;;) {
+			Token token = nextToken();
 			switch (token.getType()) {
 				case OpenParen:
 				case Plus:
@@ -42,229 +162,158 @@ public class Lexer {
 				case Divide:
 				case Mod:
 				case Comma:
-					consume = true;
+					skipEol = true;
 					break;
 				case Eol:
-					if (consume) {
+					if (skipEol) {
 						continue;
 					}
-					consume = true;
+					skipEol = true;
 					break;
 				default:
-					consume = false;
+					skipEol = false;
 			}
-			filterTokens.add(token);
+			return token;
 		}
-
-		return filterTokens;
-	}
-
-	private final static char EOF = '\0';
-	private final static char EOL = '\n';
-
-	private String input;
-	private int len, start, index;
-	private char ch;
-	private String value;
-
-	private Lexer(String input) {
-		this.input = input;
-
-		len = input.length();
-		start = index = 0;
-		value = "";
 	}
 
 	private Token nextToken() throws CalcException {
-		ch = getCh();
-		start = index;
-		while (ch != EOF) {
-			if (ch <= ' ') {
-				Token token = whitespace();
-				if (token != null) {
-					return token;
+		for (;;) {
+			char ch = getCh(index);
+			if (ch == EOF) {
+				if (index > len && refill()) {
+					continue;
 				}
-			} else if (Character.isLetter(ch) || ch == '_' || ch == '$') {
+				return new Token("(eof)", TokenType.Eof, index, index);
+			}
+
+			int cls = (ch < 128) ? CLASSES[ch] : classOf(ch);
+			if (cls == SPACE) {
+				index++;
+				if (ch == EOL) {
+					return new Token("(eol)", TokenType.Eol, index - 1, index);
+				}
+			} else if (cls == IDENT) {
 				return ident();
-			} else if (Character.isDigit(ch)) {
-				return completeNumber();
+			} else if (cls == DIGIT) {
+				return completeNumber(index);
 			} else {
 				return symbol();
 			}
-
 		}
-		value = "(eof)";
-		return make(TokenType.Eof);
 	}
 
-	private Token symbol() throws CalcException {
-		value = Character.toString(ch);
-		index++;
-		for (;;) {
-			ch = getCh();
-			if (index >= len || Character.isWhitespace(ch) || Character.isLetterOrDigit(ch)) {
-				break;
-			}
-
-			value += ch;
-			index++;
-
+	private static int classOf(char ch) {
+		if (Character.isLetter(ch)) {
+			return IDENT;
+		} else if (Character.isDigit(ch)) {
+			return DIGIT;
 		}
+		return OTHER;
+	}
 
-		if (value.equals("-") && Character.isDigit(getCh())) {
-			if ((index > 1 && !Character.isDigit(input.charAt(index - 2))) || (index == 1)) {
-				ch = '-';
-				index--;
-				return completeNumber();
-			}
+	private Token symbol() throws CalcException {
+		int start = index;
+		char ch = input.charAt(start);
+
+		// A lone '-' directly in front of a digit is a sign unless it follows
+		// another digit.
+		if (ch == '-' && Character.isDigit(getCh(start + 1))
+				&& (start == 0 || !Character.isDigit(input.charAt(start - 1)))) {
+			return completeNumber(start);
 		}
 
-		if (TokenType.isValidSymbol(value)) {
-			return make(TokenType.tokenToType(value));
-		} else if (value.length() > 1) {
-			String[] tempSyms = new String[5];
-
-			for (int i = 0; i < tempSyms.length; i++) {
-				if (i == value.length())
-					break;
-				if (i == 0) {
-					tempSyms[i] = Character.toString(value.charAt(i));
-				} else {
-					tempSyms[i] = tempSyms[i - 1] + value.charAt(i);
-				}
-			}
-
-			for (int i = (tempSyms.length - 1); i >= 0; i--) {
-				String tempSym = tempSyms[i];
-				if (tempSym != null && !tempSym.isEmpty() && TokenType.isValidSymbol(tempSym)) {
-
-					for (int j = 0; j < (value.length() - (i + 1)); j++) {
-						index--;
-					}
-
-					value = tempSym;
-
-					return make(TokenType.tokenToType(tempSym));
+		TokenType[] candidates = (ch < 128) ? SYMBOLS[ch] : null;
+		if (candidates != null) {
+			for (TokenType type : candidates) {
+				String match = type.getSymbol();
+				if (input.startsWith(match, start)) {
+					index = start + match.length();
+					return new Token(match, type, start, index);
 				}
 			}
-			throw new CalcException("Lexer", "Unknown symbol");
-		} else {
-			throw new CalcException("Lexer", "Unknown symbol");
 		}
+		throw new CalcException("Lexer", "Unknown symbol");
 	}
 
-	private void hexDigits() throws CalcException {
-		String hexDigits = "abcdefABCDEF";
-		for (;;) {
-			ch = getCh();
-			if (!Character.isDigit(ch) && !hexDigits.contains(Character.toString(ch))) {
-				break;
-			}
-			index++;
-			value += ch;
-		}
+	private static boolean isHexDigit(char ch) {
+		return Character.isDigit(ch) || (ch >= 'a' && ch <= 'f') || (ch >= 'A' && ch <= 'F');
 	}
 
-	private void digits() throws CalcException {
-		for (;;) {
-			ch = getCh();
-			if (!Character.isDigit(ch)) {
-				break;
-			}
-			index++;
-			value += ch;
+	private int digits(int i) {
+		while (Character.isDigit(getCh(i))) {
+			i++;
 		}
+		return i;
 	}
 
-	private Token completeNumber() throws CalcException {
-		value = Character.toString(ch);
-		index++;
+	private Token completeNumber(int start) throws CalcException {
+		int i = start + 1;
+		char ch;
 
-		char ch2 = getCh();
-		index++;
-		if (ch == '0' && ch2 == 'x') {
-			value += ch2;
-			hexDigits();
+		if (input.charAt(start) == '0' && getCh(i) == 'x') {
+			i++;
+			while (isHexDigit(getCh(i))) {
+				i++;
+			}
+			ch = getCh(i);
 		} else {
-			index--;
-			digits();
+			i = digits(i);
+			ch = getCh(i);
 
 			if (ch == '.') {
-				index++;
-				value += ch;
-				digits();
+				i = digits(i + 1);
+				ch = getCh(i);
 			}
 
 			if (ch == 'e' || ch == 'E') {
-				index++;
-				value += ch;
-				ch = getCh();
+				i++;
+				ch = getCh(i);
 
 				if (ch == '-' || ch == '+') {
-					index++;
-					value += ch;
-					ch = getCh();
+					i++;
+					ch = getCh(i);
 				}
 				if (!Character.isDigit(ch)) {
 					throw new CalcException("Lexer", "Bad exponent");
 				}
-				digits();
+				i = digits(i);
+				ch = getCh(i);
 			}
 		}
 
 		if (Character.isLetter(ch)) {
-			value += ch;
-			index++;
 			throw new CalcException("Lexer", "Unexpected character at end of number");
 		}
 
-		// System.out.println(value + " " + index);
-
-		return make(TokenType.Number);
+		index = i;
+		return Token.slice(input, TokenType.Number, start, i);
 	}
 
-	private Token ident() throws CalcException {
-		value = Character.toString(ch);
-		index++;
+	private Token ident() {
+		int start = index;
+		int i = start + 1;
 		for (;;) {
-			ch = getCh();
-			if (Character.isLetterOrDigit(ch) || ch == '_' || ch == '$') {
-				value += ch;
-				index++;
+			char ch = getCh(i);
+			if (ch < 128 ? CLASSES[ch] >= IDENT : Character.isLetterOrDigit(ch)) {
+				i++;
 			} else {
 				break;
 			}
 		}
+		index = i;
 
-		if (TokenType.isValidKeyword(value)) {
-			return make(TokenType.tokenToType(value));
-		} else {
-			return make(TokenType.Ident);
+		TokenType keyword = TokenType.keyword(input, start, i);
+		if (keyword != null) {
+			return new Token(keyword.getSymbol(), keyword, start, i);
 		}
+		return Token.slice(input, TokenType.Ident, start, i);
 	}
 
-	private Token whitespace() throws CalcException {
-		if (ch == '\t') {
-			index++;
-		} else if (ch == EOL) {
-			value = "(eol)";
-			index++;
-			Token token = make(TokenType.Eol);
-			return token;
-		} else {
-			index++;
+	private char getCh(int i) {
+		if (i < len) {
+			return input.charAt(i);
 		}
-
-		ch = getCh();
-
-		return null;
-	}
-
-	private char getCh() {
-		return (index >= input.length()) ? EOF : input.charAt(index);
-	}
-
-	private Token make(TokenType type) {
-		return new Token(value, type, start, index);
+		return (i == len && reader != null) ? EOL : EOF;
 	}
 }
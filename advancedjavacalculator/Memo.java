@@ -0,0 +1,259 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import advancedjavacalculator.Expr.AssignExpr;
+import advancedjavacalculator.Expr.BinaryOpExpr;
+import advancedjavacalculator.Expr.CallExpr;
+import advancedjavacalculator.Expr.GroupExpr;
+import advancedjavacalculator.Expr.LiteralExpr;
+import advancedjavacalculator.Interpreter.Scope;
+import advancedjavacalculator.Token.TokenType;
+import advancedjavacalculator.Type.Func;
+import advancedjavacalculator.Type.Num;
+import advancedjavacalculator.Type.Obj;
+
+/**
+ * A bounded LRU cache of a user function's results, keyed by the argument
+ * values and the MathContext.
+ *
+ * A function body can read globals and call other functions, so the cache
+ * remembers the value of every name the body reaches, following calls into
+ * other functions. Whenever the scope has changed since the last check those
+ * values are looked up again, and the cache is emptied if any of them differ.
+ * A body that assigns variables is never cached.
+ */
+public class Memo {
+
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private static final class Key {
+
+		private final MathContext mathContext;
+		private final Obj[] args;
+		private final int hash;
+
+		Key(MathContext mathContext, Obj[] args) {
+			this.mathContext = mathContext;
+			this.args = args;
+			hash = 31 * mathContext.hashCode() + Arrays.hashCode(args);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash == other.hash && mathContext.equals(other.mathContext)
+					&& Arrays.equals(args, other.args);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+	}
+
+	private final Func func;
+	private final int capacity;
+	private final Map<Key, Num> entries;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	// What the entries were computed against, guarded by entries.
+	private Scope scope;
+	private long version = -1;
+	private Map<String, Obj> globals;
+
+	public Memo(Func func) {
+		this(func, DEFAULT_CAPACITY);
+	}
+
+	public Memo(Func func, final int capacity) {
+		this.func = func;
+		this.capacity = capacity;
+		entries = new LinkedHashMap<Key, Num>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Num> eldest) {
+				if (size() > capacity) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+
+		};
+	}
+
+	/**
+	 * Returns the cached result of calling the function with args, or null.
+	 * version must be read from the scope before the call is evaluated and
+	 * passed to {@link #put} afterwards.
+	 */
+	Num get(Interpreter interpreter, Scope scope, long version, Obj[] args) {
+		Key key = new Key(interpreter.getMathContext(), args);
+		Num num;
+		synchronized (entries) {
+			if (!validate(interpreter, scope, version)) {
+				return null;
+			}
+			num = entries.get(key);
+		}
+
+		if (num != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		return num;
+	}
+
+	/**
+	 * Caches a result, unless the scope changed while it was being computed.
+	 */
+	void put(Interpreter interpreter, Scope scope, long version, Obj[] args, Num num) {
+		Key key = new Key(interpreter.getMathContext(), args.clone());
+		synchronized (entries) {
+			if (this.scope == scope && this.version == version && globals != null
+					&& scope.getVersion() == version) {
+				entries.put(key, num);
+			}
+		}
+	}
+
+	private boolean validate(Interpreter interpreter, Scope scope, long version) {
+		if (this.scope == scope && this.version == version) {
+			return globals != null;
+		}
+
+		Map<String, Obj> current = new HashMap<String, Obj>();
+		if (!collect(interpreter, scope, func.getCode(), current)) {
+			current = null;
+		}
+
+		if (current == null || !current.equals(globals)) {
+			if (!entries.isEmpty()) {
+				entries.clear();
+				invalidations.incrementAndGet();
+			}
+		}
+		this.scope = scope;
+		this.version = version;
+		globals = current;
+		return globals != null;
+	}
+
+	/**
+	 * Records the current value of every global the tree reaches in seen,
+	 * null for names that aren't defined. Returns false if it assigns.
+	 */
+	private static boolean collect(Interpreter interpreter, Scope scope, Expr expr,
+			Map<String, Obj> seen) {
+		if (expr instanceof LiteralExpr) {
+			if (expr.getToken().getType() == TokenType.Ident) {
+				String name = expr.getToken().getMatch();
+				if (!seen.containsKey(name)) {
+					seen.put(name, scope.getVariableNoError(name));
+				}
+			}
+		} else if (expr instanceof GroupExpr) {
+			return collect(interpreter, scope, ((GroupExpr) expr).getExpr(), seen);
+		} else if (expr instanceof BinaryOpExpr) {
+			BinaryOpExpr binaryOp = (BinaryOpExpr) expr;
+			return collect(interpreter, scope, binaryOp.getLeftExpr(), seen)
+					&& collect(interpreter, scope, binaryOp.getRightExpr(), seen);
+		} else if (expr instanceof CallExpr) {
+			CallExpr call = (CallExpr) expr;
+			for (Expr arg : call.getArguments()) {
+				if (!collect(interpreter, scope, arg, seen)) {
+					return false;
+				}
+			}
+
+			String name = call.getExpr().toString();
+			if (interpreter.getBuiltin(name) == null && !seen.containsKey(name)) {
+				Obj obj = scope.getVariableNoError(name);
+				seen.put(name, obj);
+				if (obj instanceof Func) {
+					return collect(interpreter, scope, ((Func) obj).getCode(), seen);
+				}
+			}
+		} else if (expr instanceof AssignExpr) {
+			return false;
+		}
+		// Slots are arguments and constants never change.
+		return true;
+	}
+
+	/**
+	 * Returns true if the function as currently defined can be cached, that is
+	 * nothing it reaches assigns a variable.
+	 */
+	static boolean isPure(Interpreter interpreter, Scope scope, Func func) {
+		return collect(interpreter, scope, func.getCode(), new HashMap<String, Obj>());
+	}
+
+	/**
+	 * Returns true if nothing expr reaches assigns a variable.
+	 */
+	static boolean isPure(Interpreter interpreter, Scope scope, Expr expr) {
+		return collect(interpreter, scope, expr, new HashMap<String, Obj>());
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d/%d entries, %d hits, %d misses, %d evictions, %d invalidations",
+				size(), capacity, getHits(), getMisses(), getEvictions(), getInvalidations());
+	}
+
+}
@@ -0,0 +1,212 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import advancedjavacalculator.Expr.AssignExpr;
+import advancedjavacalculator.Expr.BinaryOpExpr;
+import advancedjavacalculator.Expr.CallExpr;
+import advancedjavacalculator.Expr.ConstantExpr;
+import advancedjavacalculator.Expr.GroupExpr;
+import advancedjavacalculator.Expr.LiteralExpr;
+import advancedjavacalculator.Expr.SlotExpr;
+import advancedjavacalculator.Interpreter.Scope;
+import advancedjavacalculator.Token.TokenType;
+
+/**
+ * Rewrites a tree into an equivalent one that is cheaper to evaluate:
+ * <ul>
+ * <li>group wrappers are dropped, they only matter while parsing</li>
+ * <li>operations on literals and constants are wrapped in a
+ * {@link ConstantExpr}, which is evaluated once per MathContext</li>
+ * <li>x * 1, 1 * x, x / 1, x + 0, 0 + x, x - 0 and x ^ 1 become x</li>
+ * <li>references to the function's parameters become {@link SlotExpr}s</li>
+ * <li>variables assigned in the function's body get slots after the
+ * parameters, so they belong to the call; a read of one before it is assigned
+ * is of the global instead</li>
+ * </ul>
+ * The rewritten tree prints without its parentheses, so the original should
+ * be kept around for display.
+ */
+final class Optimizer {
+
+	private final Scope scope;
+
+	Optimizer(Scope scope) {
+		this.scope = scope;
+	}
+
+	/**
+	 * @param params the parameter names of the function the tree is the body
+	 *            of, or null for anything else
+	 */
+	Expr optimize(Expr expr, List<String> params) {
+		return optimizeExpr(expr, (params == null) ? null : new ArrayList<String>(params));
+	}
+
+	/**
+	 * Returns how many slots the frame of a call to a body optimized by
+	 * {@link #optimize} needs, which is at least one per parameter.
+	 */
+	static int getFrameSize(Expr code, int params) {
+		if (code instanceof SlotExpr) {
+			return Math.max(params, ((SlotExpr) code).getSlot() + 1);
+		} else if (code instanceof BinaryOpExpr) {
+			BinaryOpExpr binaryOp = (BinaryOpExpr) code;
+			return getFrameSize(binaryOp.getRightExpr(), getFrameSize(binaryOp.getLeftExpr(),
+					params));
+		} else if (code instanceof CallExpr) {
+			for (Expr arg : ((CallExpr) code).getArguments()) {
+				params = getFrameSize(arg, params);
+			}
+		} else if (code instanceof AssignExpr) {
+			AssignExpr assign = (AssignExpr) code;
+			return getFrameSize(assign.getVal(), getFrameSize(assign.getDef(), params));
+		}
+		// Constants have no slots.
+		return params;
+	}
+
+	/**
+	 * Returns whether a function is defined anywhere in expr.
+	 */
+	static boolean definesFunction(Expr expr) {
+		if (expr instanceof GroupExpr) {
+			return definesFunction(((GroupExpr) expr).getExpr());
+		} else if (expr instanceof BinaryOpExpr) {
+			return definesFunction(((BinaryOpExpr) expr).getLeftExpr())
+					|| definesFunction(((BinaryOpExpr) expr).getRightExpr());
+		} else if (expr instanceof CallExpr) {
+			for (Expr arg : ((CallExpr) expr).getArguments()) {
+				if (definesFunction(arg)) {
+					return true;
+				}
+			}
+		} else if (expr instanceof AssignExpr) {
+			AssignExpr assign = (AssignExpr) expr;
+			return assign.getDef().getToken().getType() != TokenType.Ident
+					|| definesFunction(assign.getVal());
+		}
+		return false;
+	}
+
+	/**
+	 * @param slots the names of the slots so far, parameters first, which
+	 *            grows as variables are assigned, or null outside a body
+	 */
+	private Expr optimizeExpr(Expr expr, List<String> slots) {
+		if (expr instanceof GroupExpr) {
+			return optimizeExpr(((GroupExpr) expr).getExpr(), slots);
+		} else if (expr instanceof BinaryOpExpr) {
+			return optimizeBinaryOp((BinaryOpExpr) expr, slots);
+		} else if (expr instanceof CallExpr) {
+			CallExpr call = (CallExpr) expr;
+			List<Expr> args = new ArrayList<Expr>();
+			for (Expr arg : call.getArguments()) {
+				args.add(optimizeExpr(arg, slots));
+			}
+			return new CallExpr(call.getToken(), call.getExpr(), args);
+		} else if (expr instanceof LiteralExpr && !isConstant(expr) && slots != null) {
+			int slot = slots.lastIndexOf(expr.getToken().getMatch());
+			if (slot >= 0) {
+				return new SlotExpr(expr.getToken(), slot);
+			}
+		} else if (expr instanceof AssignExpr && slots != null) {
+			AssignExpr assign = (AssignExpr) expr;
+			Expr def = assign.getDef();
+			if (def.getToken().getType() != TokenType.Ident) {
+				// Definitions are refused in bodies.
+				return expr;
+			}
+
+			// The value is read before the variable is assigned.
+			Expr val = optimizeExpr(assign.getVal(), slots);
+			int slot = slots.lastIndexOf(def.getToken().getMatch());
+			if (slot < 0) {
+				slot = slots.size();
+				slots.add(def.getToken().getMatch());
+			}
+			return new AssignExpr(assign.getToken(), new SlotExpr(def.getToken(), slot), val);
+		}
+
+		return expr;
+	}
+
+	private Expr optimizeBinaryOp(BinaryOpExpr binaryOp, List<String> slots) {
+		Expr left = optimizeExpr(binaryOp.getLeftExpr(), slots);
+		Expr right = optimizeExpr(binaryOp.getRightExpr(), slots);
+
+		if (isConstant(left) && isConstant(right)) {
+			return new ConstantExpr(new BinaryOpExpr(binaryOp.getToken(), unwrap(left),
+					unwrap(right)));
+		}
+
+		switch (binaryOp.getToken().getType()) {
+			case Plus:
+				if (isLiteral(left, BigDecimal.ZERO)) {
+					return right;
+				}
+				if (isLiteral(right, BigDecimal.ZERO)) {
+					return left;
+				}
+				break;
+			case Minus:
+				if (isLiteral(right, BigDecimal.ZERO)) {
+					return left;
+				}
+				break;
+			case Times:
+				if (isLiteral(left, BigDecimal.ONE)) {
+					return right;
+				}
+				if (isLiteral(right, BigDecimal.ONE)) {
+					return left;
+				}
+				break;
+			case Divide:
+			case Pow:
+				if (isLiteral(right, BigDecimal.ONE)) {
+					return left;
+				}
+				break;
+			default:
+				break;
+		}
+
+		return new BinaryOpExpr(binaryOp.getToken(), left, right);
+	}
+
+	private boolean isConstant(Expr expr) {
+		if (expr instanceof ConstantExpr) {
+			return true;
+		} else if (expr instanceof LiteralExpr) {
+			LiteralExpr literal = (LiteralExpr) expr;
+			return literal.isNumber()
+					|| (literal.getToken().getType() == TokenType.Ident && scope
+							.getConstants().containsKey(literal.getToken().getMatch()));
+		}
+		return false;
+	}
+
+	private static Expr unwrap(Expr expr) {
+		if (expr instanceof ConstantExpr) {
+			return ((ConstantExpr) expr).getExpr();
+		}
+		return expr;
+	}
+
+	private static boolean isLiteral(Expr expr, BigDecimal value) {
+		if (!(expr instanceof LiteralExpr) || !((LiteralExpr) expr).isNumber()) {
+			return false;
+		}
+		return ((LiteralExpr) expr).getExactNumber().compareTo(value) == 0;
+	}
+
+}
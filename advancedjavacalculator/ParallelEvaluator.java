@@ -0,0 +1,443 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import advancedjavacalculator.Expr.AssignExpr;
+import advancedjavacalculator.Expr.BinaryOpExpr;
+import advancedjavacalculator.Expr.CallExpr;
+import advancedjavacalculator.Expr.ConstantExpr;
+import advancedjavacalculator.Expr.GroupExpr;
+import advancedjavacalculator.Expr.LiteralExpr;
+import advancedjavacalculator.Interpreter.Scope;
+import advancedjavacalculator.Token.TokenType;
+import advancedjavacalculator.Type.Func;
+import advancedjavacalculator.Type.Obj;
+
+/**
+ * Evaluates the operands of an operation, or the arguments of a call, on
+ * several threads when more than one of them is expensive, such as two roots
+ * at -p 5000. The cost of a subtree is estimated from the precision and what
+ * it calls before anything is evaluated. A statement is estimated as a whole
+ * first, and only one that could hold two expensive operands is looked at any
+ * closer; everything else, which is nearly every statement, is left to the
+ * interpreter as it is.
+ *
+ * The expensive operands but the last are forked onto a pool shared by all
+ * interpreters, and the last is evaluated on the calling thread. A forked
+ * operand counts its steps against the budget of the statement it belongs to
+ * and stops when that statement is cancelled. Nothing is forked next to a
+ * subtree that assigns variables, so assignments are seen in the order they
+ * are written.
+ *
+ * Whole statements of a script can be forked the same way, see
+ * {@link ScriptExecutor}.
+ */
+final class ParallelEvaluator {
+
+	// Operands estimated to take at least this many nanoseconds are worth
+	// the few microseconds a fork costs.
+	private static final double FORK_COST = 200000;
+
+	// How deep function bodies are followed when estimating a call.
+	private static final int MAX_DEPTH = 8;
+
+	private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime()
+			.availableProcessors(), pool -> {
+		ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory
+				.newThread(pool);
+		thread.setName("calculator-fork-" + thread.getPoolIndex());
+		return thread;
+	}, null, false);
+
+	// The fork, or the expensive statement, running on a thread.
+	private static final ThreadLocal<Fork> running = new ThreadLocal<Fork>();
+
+	// How many threads are running a fork or an expensive statement. While
+	// there are none, the interpreter and cancellation checks look nothing up.
+	private static final AtomicInteger active = new AtomicInteger();
+
+	private final Interpreter interpreter;
+	private final AtomicLong forks = new AtomicLong();
+	private volatile Costs costs;
+
+	ParallelEvaluator(Interpreter interpreter) {
+		this.interpreter = interpreter;
+	}
+
+	/**
+	 * Starts a statement on this thread. If it is expensive enough to be
+	 * worth forking anywhere, the interpreter is told to look for operands to
+	 * fork while it runs.
+	 *
+	 * @return whether {@link #end()} has to be called afterwards
+	 */
+	boolean begin(Expr expr, Scope scope) {
+		Fork current = running.get();
+		if ((current != null && !current.statement) || !isExpensive(expr, scope, 2 * FORK_COST)) {
+			return false;
+		}
+		running.set(new Fork(expr, scope, null, false, null));
+		active.incrementAndGet();
+		return true;
+	}
+
+	static void end() {
+		running.set(running.get().parent);
+		active.decrementAndGet();
+	}
+
+	/**
+	 * Returns whether the statement running on this thread is expensive, so
+	 * its operands might be worth forking.
+	 */
+	static boolean isActive() {
+		if (active.get() == 0) {
+			return false;
+		}
+		Fork task = running.get();
+		return task != null && !task.statement;
+	}
+
+	/**
+	 * Returns whether a statement is worth evaluating on another thread.
+	 */
+	boolean isExpensive(Expr expr, Scope scope) {
+		return isExpensive(expr, scope, FORK_COST);
+	}
+
+	private boolean isExpensive(Expr expr, Scope scope, double limit) {
+		return cost(expr, scope, limit) >= limit;
+	}
+
+	/**
+	 * Starts evaluating a whole statement on the pool, as part of what this
+	 * thread is running: it is cancelled along with it. The statement gets
+	 * its own budget, timing and number mode as if it were evaluated here.
+	 *
+	 * @param done called on the thread that evaluated it once it is finished,
+	 *            whether it succeeded or not
+	 */
+	Fork forkStatement(Expr expr, Scope scope, Runnable done) {
+		return fork(new Fork(expr, scope, null, true, done));
+	}
+
+	/**
+	 * Evaluates exprs in parallel if at least two of them are expensive.
+	 *
+	 * @return their values in order, or null if they weren't worth forking and
+	 *         have to be evaluated as usual
+	 */
+	Obj[] evalAll(List<Expr> exprs, Scope scope, Obj[] frame) throws CalcException {
+		boolean[] expensive = new boolean[exprs.size()];
+		int count = 0;
+		for (int i = 0; i < expensive.length; i++) {
+			expensive[i] = isExpensive(exprs.get(i), scope);
+			if (expensive[i]) {
+				count++;
+			}
+		}
+		if (count < 2) {
+			return null;
+		}
+		// The forks run alongside the cheap operands as well as each other, so
+		// an assignment anywhere could be seen out of order.
+		for (Expr expr : exprs) {
+			if (!Memo.isPure(interpreter, scope, expr)) {
+				return null;
+			}
+		}
+
+		Fork[] tasks = new Fork[exprs.size()];
+		Obj[] objs = new Obj[exprs.size()];
+		try {
+			// The last expensive one is evaluated here, the others forked.
+			for (int i = 0; i < expensive.length && count > 1; i++) {
+				if (expensive[i]) {
+					tasks[i] = fork(new Fork(exprs.get(i), scope, frame, false, null));
+					count--;
+				}
+			}
+			for (int i = 0; i < objs.length; i++) {
+				if (tasks[i] == null) {
+					objs[i] = interpreter.interpret(exprs.get(i), scope, frame);
+				}
+			}
+			for (int i = 0; i < objs.length; i++) {
+				if (tasks[i] != null) {
+					objs[i] = tasks[i].await();
+				}
+			}
+		} finally {
+			// After an error the forks still running are no use.
+			for (Fork task : tasks) {
+				if (task != null) {
+					task.cancel(false);
+				}
+			}
+		}
+		return objs;
+	}
+
+	private Fork fork(Fork task) {
+		forks.incrementAndGet();
+		Thread thread = Thread.currentThread();
+		if (thread instanceof ForkJoinWorkerThread
+				&& ((ForkJoinWorkerThread) thread).getPool() == POOL) {
+			task.fork();
+		} else {
+			POOL.execute(task);
+		}
+		return task;
+	}
+
+	long getForks() {
+		return forks.get();
+	}
+
+	/**
+	 * Returns whether the statement that the fork running on this thread
+	 * belongs to was cancelled, or the fork itself is no longer needed.
+	 */
+	static boolean isCancelled() {
+		if (active.get() == 0) {
+			return false;
+		}
+		Fork task = running.get();
+		return task != null && task.isAbandoned();
+	}
+
+	/**
+	 * Estimates how many nanoseconds expr takes, stopping once it is clear
+	 * that it takes at least limit.
+	 */
+	private double cost(Expr expr, Scope scope, double limit) {
+		Costs costs = this.costs;
+		int precision = interpreter.getMathContext().getPrecision();
+		if (costs == null || costs.precision != precision) {
+			costs = new Costs(precision);
+			this.costs = costs;
+		}
+		return new Estimate(scope, costs, limit).cost(expr, 0, 0);
+	}
+
+	/**
+	 * What the operations take at a precision, roughly, from the builtins and
+	 * pow benchmarks.
+	 */
+	private static final class Costs {
+
+		private final int precision;
+		// A product or quotient.
+		private final double arithmetic;
+		// A root, which is a few Newton steps.
+		private final double newton;
+
+		private Costs(int precision) {
+			this.precision = precision;
+			double digits = (precision > 0) ? precision : 34;
+			arithmetic = 100 + 40 * Math.pow(digits / 100, 1.6);
+			newton = 10000 + 4000 * Math.pow(digits / 100, 1.8);
+		}
+
+	}
+
+	/**
+	 * What a call to a function takes at a precision. It is kept on the
+	 * function so its body is only estimated once; redefining a function it
+	 * calls can leave it out of date, which only makes the estimate rougher.
+	 */
+	static final class Cost {
+
+		private final int precision;
+		private final double nanos;
+
+		private Cost(int precision, double nanos) {
+			this.precision = precision;
+			this.nanos = nanos;
+		}
+
+	}
+
+	private final class Estimate {
+
+		private final Scope scope;
+		private final Costs costs;
+		private final double limit;
+
+		private Estimate(Scope scope, Costs costs, double limit) {
+			this.scope = scope;
+			this.costs = costs;
+			this.limit = limit;
+		}
+
+		/**
+		 * @param depth how many function bodies deep expr is
+		 * @param total the cost of what was estimated so far
+		 * @return total plus the cost of expr
+		 */
+		private double cost(Expr expr, int depth, double total) {
+			if (total >= limit) {
+				return total;
+			}
+
+			if (expr instanceof AssignExpr) {
+				AssignExpr assign = (AssignExpr) expr;
+				return (assign.getDef().getToken().getType() != TokenType.Ident) ? total : cost(
+						assign.getVal(), depth, total);
+			} else if (expr instanceof ConstantExpr) {
+				ConstantExpr constant = (ConstantExpr) expr;
+				return (constant.getNumber(interpreter.getMathContext()) != null) ? total : cost(
+						constant.getExpr(), depth, total);
+			} else if (expr instanceof GroupExpr) {
+				return cost(((GroupExpr) expr).getExpr(), depth, total);
+			} else if (expr instanceof BinaryOpExpr) {
+				BinaryOpExpr binaryOp = (BinaryOpExpr) expr;
+				total = cost(binaryOp.getRightExpr(), depth, total);
+				total = cost(binaryOp.getLeftExpr(), depth, total);
+
+				Expr right = binaryOp.getRightExpr();
+				if (expr.getToken().getType() != TokenType.Pow) {
+					return total + costs.arithmetic;
+				} else if (right instanceof LiteralExpr && ((LiteralExpr) right).isNumber()) {
+					double exponent = Math.abs(((LiteralExpr) right).getDoubleNumber());
+					if (exponent == Math.rint(exponent)) {
+						// By squaring.
+						return total + costs.arithmetic * (1 + Math.log(exponent + 1));
+					}
+				}
+				// Through exp and ln.
+				return total + 8 * costs.newton;
+			} else if (expr instanceof CallExpr) {
+				CallExpr call = (CallExpr) expr;
+				for (Expr arg : call.getArguments()) {
+					total = cost(arg, depth, total);
+				}
+
+				String name = call.getExpr().toString();
+				if (interpreter.getBuiltin(name) != null) {
+					return total + costs.newton;
+				}
+				Func func = scope.getFunctionNoError(name);
+				return (func == null) ? total : total + call(func, depth);
+			}
+
+			// Literals, variables and arguments.
+			return total;
+		}
+
+		private double call(Func func, int depth) {
+			Cost cost = func.getCost();
+			if (cost != null && cost.precision == costs.precision) {
+				return cost.nanos;
+			} else if (depth >= MAX_DEPTH) {
+				// Most likely recursive, which is expensive anyway.
+				return limit;
+			}
+
+			// Up to the largest limit any estimate uses, so it can be reused.
+			double nanos = new Estimate(scope, costs, 2 * FORK_COST).cost(func.getCode(),
+					depth + 1, 0);
+			func.setCost(new Cost(costs.precision, nanos));
+			return nanos;
+		}
+
+	}
+
+	/**
+	 * An operand or a statement evaluated on the pool, or an expensive
+	 * statement running on the thread that started it. It keeps the value or
+	 * the error, so the error is thrown on the thread that waits for it, as if
+	 * it had been evaluated there.
+	 */
+	final class Fork extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Expr expr;
+		private final Scope scope;
+		private final Obj[] frame;
+		private final boolean statement;
+		private final Runnable done;
+		private final Budget.Meter meter = Budget.getMeter();
+		private final Thread owner = Thread.currentThread();
+		private final Fork parent = running.get();
+		private Obj obj;
+		private CalcException error;
+
+		private Fork(Expr expr, Scope scope, Obj[] frame, boolean statement, Runnable done) {
+			this.expr = expr;
+			this.scope = scope;
+			this.frame = frame;
+			this.statement = statement;
+			this.done = done;
+		}
+
+		@Override
+		protected void compute() {
+			// A thread waiting for one fork may run another one meanwhile, so
+			// what it was running before is put back afterwards.
+			Fork previous = running.get();
+			Budget.Meter previousMeter = Budget.setMeter(meter);
+			running.set(this);
+			active.incrementAndGet();
+			try {
+				obj = statement ? interpreter.interpretExpr(expr, scope) : interpreter.interpret(
+						expr, scope, frame);
+			} catch (CalcException e) {
+				error = e;
+			} finally {
+				active.decrementAndGet();
+				running.set(previous);
+				Budget.setMeter(previousMeter);
+				if (done != null) {
+					done.run();
+				}
+			}
+		}
+
+		/**
+		 * The statement was cancelled, or the thread that forked this gave up
+		 * on it.
+		 */
+		private boolean isAbandoned() {
+			return isCancelled() || owner.isInterrupted()
+					|| (parent != null && parent.isAbandoned());
+		}
+
+		Obj await() throws CalcException {
+			try {
+				get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CalcException("Interpreter", "Calculation cancelled");
+			} catch (CancellationException e) {
+				throw new CalcException("Interpreter", "Calculation cancelled");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Error) {
+					throw (Error) e.getCause();
+				}
+				throw (RuntimeException) e.getCause();
+			}
+
+			if (error != null) {
+				throw error;
+			}
+			return obj;
+		}
+
+	}
+
+}
@@ -0,0 +1,145 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import advancedjavacalculator.Parser.CalcParser;
+import advancedjavacalculator.Token.TokenType;
+
+/**
+ * A bounded LRU cache from input text to its parsed statements. The parsed
+ * trees don't depend on the MathContext, so entries stay valid across -p.
+ */
+public class ParseCache {
+
+	public static final int DEFAULT_CAPACITY = 1024;
+	public static final int MAX_INPUT_LENGTH = 4096;
+
+	private final Map<String, List<Expr>> entries;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public ParseCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public ParseCache(final int capacity) {
+		entries = new LinkedHashMap<String, List<Expr>>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, List<Expr>> eldest) {
+				return size() > capacity;
+			}
+
+		};
+	}
+
+	public List<Expr> parse(String input) throws CalcException {
+		Stats.ParseEvent event = new Stats.ParseEvent();
+		event.begin();
+		String key = normalize(input);
+
+		List<Expr> exprs;
+		synchronized (entries) {
+			exprs = entries.get(key);
+		}
+		if (exprs != null) {
+			hits.incrementAndGet();
+			event.cached = true;
+			event.commit();
+			return exprs;
+		}
+
+		misses.incrementAndGet();
+		exprs = parseUncached(key);
+		if (key.length() <= MAX_INPUT_LENGTH) {
+			synchronized (entries) {
+				entries.put(key, exprs);
+			}
+		}
+		event.commit();
+		return exprs;
+	}
+
+	/**
+	 * Lexes and parses input, timing both for {@link Stats}. Statements are
+	 * parsed one at a time, and parsing stops at the first one that can't be
+	 * parsed or isn't followed by the end of its line, so "1 2" is 1. Only if
+	 * that is the first statement is it an error.
+	 */
+	public static List<Expr> parseUncached(String input) throws CalcException {
+		long start = System.nanoTime();
+		List<Token> tokens = Lexer.doString(input);
+		long lexed = System.nanoTime();
+		Stats.LEX.record(lexed - start);
+
+		Parser parser = new CalcParser(tokens);
+		List<Expr> exprs = new ArrayList<Expr>();
+
+		for (;;) {
+			Expr expr;
+			try {
+				expr = parser.parseExpr();
+			} catch (CalcException e) {
+				if (exprs.isEmpty()) {
+					throw e;
+				}
+				break;
+			}
+			if (expr == null) {
+				break;
+			}
+
+			exprs.add(expr);
+			if (!parser.match(TokenType.Eol)) {
+				break;
+			}
+			parser.consumeEndOfLine();
+		}
+
+		Stats.PARSE.record(System.nanoTime() - lexed);
+		return Collections.unmodifiableList(exprs);
+	}
+
+	/**
+	 * Spaces and tabs only separate tokens, so runs of them are collapsed to
+	 * a single space. They can't be dropped entirely: "3 -2" and "3-2" lex
+	 * differently.
+	 */
+	static String normalize(String input) {
+		return input.trim().replace("\r\n", "\n").replaceAll("[ \t]+", " ");
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+}
@@ -22,6 +22,14 @@ import advancedjavacalculator.Token.TokenType;
 
 public class Parser {
 
+	/**
+	 * Supplies tokens one at a time. Once Eof is reached it keeps returning
+	 * Eof.
+	 */
+	interface TokenSource {
+		Token next() throws CalcException;
+	}
+
 	private interface PrefixParser {
 		Expr parse(Parser parser, Token token) throws CalcException;
 	}
@@ -145,6 +153,10 @@ public class Parser {
 	public static class CalcParser extends Parser {
 
 		public CalcParser(List<Token> tokens) {
+			this(source(tokens));
+		}
+
+		CalcParser(TokenSource tokens) {
 			super(tokens);
 
 			register(TokenType.Number, new LiteralParser());
@@ -175,17 +187,41 @@ public class Parser {
 
 	private Map<TokenType, InfixParser> infixParsers;
 	private Map<TokenType, PrefixParser> prefixParsers;
-	private List<Token> read;
-	private Iterator<Token> tokensItr;
+	private TokenSource tokens;
+
+	// Lookahead ring buffer, read[head] is the next token.
+	private Token[] read;
+	private int head, size;
 
 	public Parser(List<Token> tokens) {
-		tokensItr = tokens.iterator();
+		this(source(tokens));
+	}
+
+	Parser(TokenSource tokens) {
+		this.tokens = tokens;
 
-		read = new ArrayList<Token>();
+		read = new Token[4];
 		infixParsers = new HashMap<TokenType, InfixParser>();
 		prefixParsers = new HashMap<TokenType, PrefixParser>();
 	}
 
+	private static TokenSource source(List<Token> tokens) {
+		final Iterator<Token> itr = tokens.iterator();
+		return new TokenSource() {
+
+			private Token last;
+
+			@Override
+			public Token next() {
+				if (itr.hasNext()) {
+					last = itr.next();
+				}
+				return last;
+			}
+
+		};
+	}
+
 	public void register(TokenType type, PrefixParser parser) {
 		prefixParsers.put(type, parser);
 	}
@@ -217,7 +253,8 @@ public class Parser {
 
 		Expr leftExpr = prefix.parse(this, token);
 
-		if (!tokensItr.hasNext() || lookAhead().getType() == TokenType.Eol) {
+		TokenType next = lookAhead().getType();
+		if (next == TokenType.Eof || next == TokenType.Eol) {
 			return leftExpr;
 		}
 
@@ -231,11 +268,11 @@ public class Parser {
 		return leftExpr;
 	}
 
-	public boolean match(TokenType expectedTokenType) {
+	public boolean match(TokenType expectedTokenType) throws CalcException {
 		return match(0, expectedTokenType);
 	}
 
-	public boolean match(int distance, TokenType expectedTokenType) {
+	public boolean match(int distance, TokenType expectedTokenType) throws CalcException {
 		Token token = lookAhead(distance);
 		if (token.getType() != expectedTokenType) {
 			return false;
@@ -244,11 +281,11 @@ public class Parser {
 		return true;
 	}
 
-	public boolean match(TokenType... expectedTokenTypes) {
+	public boolean match(TokenType... expectedTokenTypes) throws CalcException {
 		return match(0, expectedTokenTypes);
 	}
 
-	public boolean match(int distance, TokenType... expectedTokenTypes) {
+	public boolean match(int distance, TokenType... expectedTokenTypes) throws CalcException {
 		for (TokenType expectedTokenType : expectedTokenTypes) {
 			if (match(distance, expectedTokenType)) {
 				return true;
@@ -258,7 +295,7 @@ public class Parser {
 		return false;
 	}
 
-	public boolean matchConsume(TokenType expectedTokenType) {
+	public boolean matchConsume(TokenType expectedTokenType) throws CalcException {
 		if (match(expectedTokenType)) {
 			consume();
 			return true;
@@ -267,7 +304,7 @@ public class Parser {
 		return false;
 	}
 
-	public boolean matchConsume(TokenType... expectedTokenTypes) {
+	public boolean matchConsume(TokenType... expectedTokenTypes) throws CalcException {
 		for (TokenType expectedTokenType : expectedTokenTypes) {
 			if (matchConsume(expectedTokenType)) {
 				return true;
@@ -277,9 +314,13 @@ public class Parser {
 		return false;
 	}
 
-	public Token consume() {
+	public Token consume() throws CalcException {
 		lookAhead();
-		return read.remove(0);
+		Token token = read[head];
+		read[head] = null;
+		head = (head + 1) & (read.length - 1);
+		size--;
+		return token;
 	}
 
 	public Token consume(TokenType expectedTokenType) throws CalcException {
@@ -303,19 +344,38 @@ public class Parser {
 				Arrays.toString(expectedTokenTypes), lookAhead().getType()));
 	}
 
-	public Token lookAhead(int distance) {
-		while (distance >= read.size()) {
-			read.add(tokensItr.next());
+	public Token lookAhead(int distance) throws CalcException {
+		while (distance >= size) {
+			if (size == read.length) {
+				Token[] grown = new Token[read.length * 2];
+				for (int i = 0; i < size; i++) {
+					grown[i] = read[(head + i) & (read.length - 1)];
+				}
+				read = grown;
+				head = 0;
+			}
+			read[(head + size) & (read.length - 1)] = tokens.next();
+			size++;
 		}
 
-		return read.get(distance);
+		return read[(head + distance) & (read.length - 1)];
+	}
+
+	/**
+	 * Drops any tokens that were looked at but not consumed.
+	 */
+	void reset() {
+		for (int i = 0; i < size; i++) {
+			read[(head + i) & (read.length - 1)] = null;
+		}
+		head = size = 0;
 	}
 
-	public Token lookAhead() {
+	public Token lookAhead() throws CalcException {
 		return lookAhead(0);
 	}
 
-	private int getPrecedence() {
+	private int getPrecedence() throws CalcException {
 		InfixParser parser = infixParsers.get(lookAhead().getType());
 		if (parser != null) {
 			return parser.getPrecedence();
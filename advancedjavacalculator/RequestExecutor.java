@@ -0,0 +1,132 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs calculations for many users on one bounded pool. Each user can only
+ * have a few calculations queued or running at once, and when the queue is
+ * full new requests are turned away instead of piling up. A calculation that
+ * runs past the timeout has its thread interrupted; the interpreter checks for
+ * that between steps and gives up, so the thread is freed for the next
+ * request.
+ */
+public class RequestExecutor {
+
+	public interface Callback {
+		void done(String result);
+	}
+
+	private final ThreadPoolExecutor executor;
+	private final ScheduledThreadPoolExecutor timeouts;
+	private final ConcurrentHashMap<String, Integer> pending = new ConcurrentHashMap<String, Integer>();
+	private final int perUserLimit;
+	private final long timeout;
+	private final TimeUnit unit;
+
+	public RequestExecutor(int threads, int queueCapacity, int perUserLimit, long timeout,
+			TimeUnit unit) {
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), daemonThreads("calc"));
+		this.timeouts = new ScheduledThreadPoolExecutor(1, daemonThreads("calc-timeout"));
+		this.timeouts.setRemoveOnCancelPolicy(true);
+		this.perUserLimit = perUserLimit;
+		this.timeout = timeout;
+		this.unit = unit;
+	}
+
+	/**
+	 * Queues a calculation. The callback is always called exactly once, with
+	 * the result, a timeout error or a rejection error.
+	 */
+	public void submit(final String user, final Callable<String> task, final Callback callback) {
+		if (pending.merge(user, 1, Integer::sum) > perUserLimit) {
+			release(user);
+			Stats.rejected(user, "Too many pending");
+			callback.done("Error -> Too many calculations pending, please wait");
+			return;
+		}
+
+		try {
+			executor.execute(() -> {
+				try {
+					callback.done(run(task));
+				} finally {
+					release(user);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			release(user);
+			Stats.rejected(user, "Queue full");
+			callback.done("Error -> The calculator is busy, please try again later");
+		}
+	}
+
+	private String run(Callable<String> task) {
+		final Thread worker = Thread.currentThread();
+		final boolean[] state = new boolean[2]; // { finished, timedOut }
+
+		Runnable interrupt = () -> {
+			synchronized (state) {
+				if (!state[0]) {
+					state[1] = true;
+					worker.interrupt();
+				}
+			}
+		};
+		ScheduledFuture<?> timer = timeouts.schedule(interrupt, timeout, unit);
+
+		String result;
+		try {
+			result = task.call();
+		} catch (Exception e) {
+			result = String.format("Error -> %s", e.getMessage());
+		} finally {
+			synchronized (state) {
+				state[0] = true;
+			}
+			timer.cancel(false);
+			Thread.interrupted();
+		}
+
+		if (state[1]) {
+			Stats.timedOut();
+			return String.format("Error -> Calculation took longer than %d %s", timeout,
+					unit.toString().toLowerCase());
+		}
+		return result;
+	}
+
+	private void release(String user) {
+		pending.computeIfPresent(user, (key, count) -> count <= 1 ? null : count - 1);
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+		timeouts.shutdownNow();
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		final AtomicInteger id = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + "-" + id.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+}
@@ -0,0 +1,249 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import advancedjavacalculator.Expr.AssignExpr;
+import advancedjavacalculator.Expr.CallExpr;
+import advancedjavacalculator.Interpreter.Scope;
+import advancedjavacalculator.Type.Func;
+import advancedjavacalculator.Type.Obj;
+
+/**
+ * Evaluates every statement of a script, running statements that don't
+ * depend on each other at the same time. What each statement reads and
+ * assigns is worked out before any of it runs, following the bodies of the
+ * functions it calls, and a statement waits for every earlier one that
+ * assigns something it reads or assigns, or reads something it assigns. The
+ * script therefore ends up with the same variables and results as when it is
+ * evaluated in order.
+ * <p>
+ * The thread calling {@link #execute(List)} hands out the statements. Cheap
+ * ones it evaluates itself, in order, and expensive ones are forked like the
+ * operands in {@link ParallelEvaluator}. Interrupting it cancels the script.
+ */
+public class ScriptExecutor {
+
+	/**
+	 * The outcome of one statement, its value or its error.
+	 */
+	public static final class Result {
+
+		private final Obj value;
+		private final String error;
+
+		private Result(Obj value, String error) {
+			this.value = value;
+			this.error = error;
+		}
+
+		/**
+		 * Returns the value, or null if the statement had none or failed.
+		 */
+		public Obj getValue() {
+			return value;
+		}
+
+		/**
+		 * Returns the error message, or null if the statement succeeded.
+		 */
+		public String getError() {
+			return error;
+		}
+
+		/**
+		 * Returns the value or the error the way the calculator prints them,
+		 * or an empty string if there is nothing to print.
+		 */
+		@Override
+		public String toString() {
+			if (error != null) {
+				return String.format("Error -> %s", error);
+			}
+			return (value != null) ? value.toString() : "";
+		}
+
+	}
+
+	private final Interpreter interpreter;
+
+	public ScriptExecutor(Interpreter interpreter) {
+		this.interpreter = interpreter;
+	}
+
+	/**
+	 * Evaluates statements in the interpreter's scope.
+	 *
+	 * @return the result of each statement, in the order given
+	 * @throws CalcException if the script was cancelled
+	 */
+	public List<Result> execute(List<Expr> statements) throws CalcException {
+		int count = statements.size();
+		Scope scope = interpreter.getScope();
+		int[][] dependents = dependents(statements, scope);
+
+		int[] waiting = new int[count];
+		for (int[] list : dependents) {
+			for (int dependent : list) {
+				waiting[dependent]++;
+			}
+		}
+
+		// Statements that can run, first in the script first.
+		PriorityQueue<Integer> ready = new PriorityQueue<Integer>();
+		for (int i = 0; i < count; i++) {
+			if (waiting[i] == 0) {
+				ready.add(i);
+			}
+		}
+
+		ParallelEvaluator evaluator = interpreter.getParallelEvaluator();
+		BlockingQueue<Integer> finished = new LinkedBlockingQueue<Integer>();
+		ParallelEvaluator.Fork[] tasks = new ParallelEvaluator.Fork[count];
+		Result[] results = new Result[count];
+		int done = 0;
+		try {
+			while (done < count) {
+				Integer next = finished.poll();
+				if (next != null) {
+					results[next] = result(tasks[next]);
+				} else if (!ready.isEmpty()) {
+					next = ready.poll();
+					Expr expr = statements.get(next);
+					if (interpreter.isParallel() && evaluator.isExpensive(expr, scope)) {
+						final int index = next;
+						tasks[index] = evaluator.forkStatement(expr, scope, () -> finished
+								.add(index));
+						continue;
+					}
+					results[next] = evaluate(expr, scope);
+				} else {
+					next = finished.take();
+					results[next] = result(tasks[next]);
+				}
+
+				done++;
+				for (int dependent : dependents[next]) {
+					if (--waiting[dependent] == 0) {
+						ready.add(dependent);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CalcException("Interpreter", "Calculation cancelled");
+		} finally {
+			for (ParallelEvaluator.Fork task : tasks) {
+				if (task != null) {
+					task.cancel(false);
+				}
+			}
+		}
+
+		return Arrays.asList(results);
+	}
+
+	private Result evaluate(Expr expr, Scope scope) {
+		try {
+			return new Result(interpreter.interpretExpr(expr, scope), null);
+		} catch (Exception e) {
+			return new Result(null, e.getMessage());
+		} catch (StackOverflowError e) {
+			return new Result(null, "Too many nested function calls");
+		}
+	}
+
+	private static Result result(ParallelEvaluator.Fork task) {
+		try {
+			return new Result(task.await(), null);
+		} catch (Exception e) {
+			return new Result(null, e.getMessage());
+		} catch (StackOverflowError e) {
+			return new Result(null, "Too many nested function calls");
+		}
+	}
+
+	/**
+	 * Returns, for every statement, the later statements that have to wait
+	 * for it.
+	 */
+	private int[][] dependents(List<Expr> statements, Scope scope) {
+		List<List<Integer>> dependents = new ArrayList<List<Integer>>();
+		Map<String, Integer> lastWriter = new HashMap<String, Integer>();
+		Map<String, List<Integer>> readers = new HashMap<String, List<Integer>>();
+		Map<String, Func> functions = new HashMap<String, Func>();
+		Sheet sheet = (interpreter.getSheet() != null && interpreter.getSheet().getScope() == scope)
+				? interpreter.getSheet() : null;
+
+		for (int i = 0; i < statements.size(); i++) {
+			dependents.add(new ArrayList<Integer>());
+			Dependencies names = new Dependencies(interpreter, scope, functions);
+			names.collect(statements.get(i), null);
+			if (sheet != null) {
+				// Reading a variable that is out of date works it out again.
+				sheet.addUpstream(names.getReads());
+			}
+
+			Set<Integer> dependencies = new HashSet<Integer>();
+			for (String name : names.getReads()) {
+				Integer writer = lastWriter.get(name);
+				if (writer != null) {
+					dependencies.add(writer);
+				}
+				readers.computeIfAbsent(name, key -> new ArrayList<Integer>()).add(i);
+			}
+			for (String name : names.getWrites()) {
+				Integer writer = lastWriter.get(name);
+				if (writer != null) {
+					dependencies.add(writer);
+				}
+				List<Integer> previous = readers.remove(name);
+				if (previous != null) {
+					dependencies.addAll(previous);
+				}
+				lastWriter.put(name, i);
+			}
+			dependencies.remove(i);
+			for (int dependency : dependencies) {
+				dependents.get(dependency).add(i);
+			}
+
+			// Later calls see this definition.
+			Expr statement = statements.get(i);
+			if (statement instanceof AssignExpr
+					&& ((AssignExpr) statement).getDef() instanceof CallExpr) {
+				CallExpr def = (CallExpr) ((AssignExpr) statement).getDef();
+				List<String> arguments = new ArrayList<String>();
+				for (Expr arg : def.getArguments()) {
+					arguments.add(arg.toString());
+				}
+				functions.put(def.getExpr().toString(), new Func(arguments,
+						((AssignExpr) statement).getVal()));
+			}
+		}
+
+		int[][] out = new int[dependents.size()][];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = new int[dependents.get(i).size()];
+			for (int j = 0; j < out[i].length; j++) {
+				out[i][j] = dependents.get(i).get(j);
+			}
+		}
+		return out;
+	}
+
+}
@@ -0,0 +1,150 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import advancedjavacalculator.Parser.CalcParser;
+import advancedjavacalculator.Token.TokenType;
+import advancedjavacalculator.Type.Obj;
+
+/**
+ * Runs a script one statement at a time. Each statement is lexed, parsed and
+ * evaluated before the next one is read, and its result is written straight
+ * away, so memory stays bounded by the largest statement rather than the
+ * script.
+ * <p>
+ * While the interpreter is parallel, statements are read up to
+ * {@link #CHUNK_STATEMENTS} at a time instead and each chunk is evaluated by a
+ * {@link ScriptExecutor}, so independent statements run at the same time.
+ * A chunk is cut short whenever no more input is waiting, so statements typed
+ * or piped in slowly still get their results straight away. The results are
+ * still written in the order of the script.
+ */
+public class ScriptRunner {
+
+	public static final int CHUNK_STATEMENTS = 1024;
+
+	private final Interpreter interpreter;
+	private final List<Expr> chunk = new ArrayList<Expr>();
+	private final List<Long> lines = new ArrayList<Long>();
+
+	private long statements, errors;
+
+	public ScriptRunner(Interpreter interpreter) {
+		this.interpreter = interpreter;
+	}
+
+	/**
+	 * Evaluates every statement read from in and prints results and errors to
+	 * out. An error skips the rest of its line and the script carries on.
+	 */
+	public void run(BufferedReader in, PrintWriter out) {
+		Lexer lexer = new Lexer(in);
+		Parser parser = new CalcParser(lexer);
+
+		for (;;) {
+			try {
+				Expr expr = parser.parseExpr();
+				if (expr == null) {
+					break;
+				}
+
+				statements++;
+				if (interpreter.isParallel()) {
+					chunk.add(expr);
+					lines.add(lexer.getLine());
+					if (chunk.size() == CHUNK_STATEMENTS || !isWaiting(in)) {
+						flush(out);
+					}
+				} else {
+					Obj ret = interpreter.interpretExpr(expr, interpreter.getScope());
+					if (ret != null) {
+						out.println(ret);
+					}
+				}
+
+				if (parser.match(TokenType.Eof)) {
+					break;
+				}
+				parser.consumeEndOfLine();
+			} catch (Exception e) {
+				flush(out);
+				error(out, lexer.getLine(), e.getMessage());
+				parser.reset();
+				lexer.skipLine();
+			} catch (StackOverflowError e) {
+				flush(out);
+				error(out, lexer.getLine(), "Too many nested function calls");
+				parser.reset();
+				lexer.skipLine();
+			}
+		}
+
+		flush(out);
+		out.flush();
+	}
+
+	/**
+	 * Evaluates the statements read so far and writes their results.
+	 */
+	private void flush(PrintWriter out) {
+		if (chunk.isEmpty()) {
+			return;
+		}
+
+		try {
+			List<ScriptExecutor.Result> results = new ScriptExecutor(interpreter).execute(chunk);
+			for (int i = 0; i < results.size(); i++) {
+				ScriptExecutor.Result result = results.get(i);
+				if (result.getError() != null) {
+					error(out, lines.get(i), result.getError());
+				} else if (result.getValue() != null) {
+					out.println(result.getValue());
+				}
+			}
+		} catch (CalcException e) {
+			// Nothing of the chunk is written then, so every statement in it
+			// counts as failed.
+			errors += chunk.size();
+			out.printf("Error at lines %d-%d -> %s, %d statements skipped%n", lines.get(0),
+					lines.get(lines.size() - 1), e.getMessage(), chunk.size());
+		}
+		chunk.clear();
+		lines.clear();
+	}
+
+	/**
+	 * Returns whether more input can be read without blocking.
+	 */
+	private static boolean isWaiting(BufferedReader in) {
+		try {
+			return in.ready();
+		} catch (IOException e) {
+			// Reading fails as well then and reports it.
+			return false;
+		}
+	}
+
+	private void error(PrintWriter out, long line, String message) {
+		errors++;
+		out.printf("Error at line %d -> %s%n", line, message);
+	}
+
+	public long getStatements() {
+		return statements;
+	}
+
+	public long getErrors() {
+		return errors;
+	}
+
+}
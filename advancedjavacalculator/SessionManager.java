@@ -0,0 +1,169 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gives every user their own interpreter, with its own variables, functions
+ * and settings. All of them share the constants, builtins and parse cache of
+ * one template interpreter. Each session's scope is limited in size, sessions
+ * that have been idle too long are dropped, and when there are too many the
+ * least recently used one is dropped.
+ * <p>
+ * With a snapshot directory, a dropped session is saved there first, see
+ * {@link Snapshot}, and restored the next time its user is back, even after a
+ * restart.
+ */
+public class SessionManager {
+
+	private static final class Session {
+
+		private final Interpreter interpreter;
+		private long lastUsed;
+
+		private Session(Interpreter interpreter) {
+			this.interpreter = interpreter;
+		}
+
+	}
+
+	private final Interpreter shared;
+	private final int maxSessions;
+	private final long maxIdleNanos;
+	private final int maxVariables;
+	private final long maxSize;
+	private final LinkedHashMap<String, Session> sessions = new LinkedHashMap<String, Session>(
+			16, 0.75f, true);
+	private Path snapshots;
+
+	/**
+	 * @param maxVariables how many variables and functions one user may define
+	 * @param maxSize roughly how many bytes those may take up together
+	 */
+	public SessionManager(Interpreter shared, int maxSessions, long maxIdle, TimeUnit unit,
+			int maxVariables, long maxSize) {
+		this.shared = shared;
+		this.maxSessions = maxSessions;
+		this.maxIdleNanos = unit.toNanos(maxIdle);
+		this.maxVariables = maxVariables;
+		this.maxSize = maxSize;
+	}
+
+	public synchronized Interpreter get(String user) {
+		long now = System.nanoTime();
+		evictIdle(now);
+
+		Session session = sessions.get(user);
+		if (session == null) {
+			Interpreter interpreter = new Interpreter(shared);
+			interpreter.getScope().setLimits(maxVariables, maxSize);
+			restore(user, interpreter);
+			session = new Session(interpreter);
+			sessions.put(user, session);
+
+			if (sessions.size() > maxSessions) {
+				Iterator<Map.Entry<String, Session>> eldest = sessions.entrySet().iterator();
+				save(eldest.next());
+				eldest.remove();
+			}
+		}
+
+		session.lastUsed = now;
+		return session.interpreter;
+	}
+
+	public synchronized void remove(String user) {
+		sessions.remove(user);
+	}
+
+	/**
+	 * Sets the directory sessions are saved to and restored from, or null to
+	 * keep them only in memory.
+	 */
+	public synchronized void setSnapshotDirectory(Path snapshots) {
+		this.snapshots = snapshots;
+	}
+
+	/**
+	 * Saves every session to the snapshot directory, such as before shutting
+	 * down.
+	 */
+	public synchronized void saveAll() {
+		for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+			save(entry);
+		}
+	}
+
+	public synchronized int size() {
+		return sessions.size();
+	}
+
+	private void evictIdle(long now) {
+		Iterator<Map.Entry<String, Session>> itr = sessions.entrySet().iterator();
+		while (itr.hasNext()) {
+			Map.Entry<String, Session> entry = itr.next();
+			if (now - entry.getValue().lastUsed < maxIdleNanos) {
+				break;
+			}
+			save(entry);
+			itr.remove();
+		}
+	}
+
+	private void restore(String user, Interpreter interpreter) {
+		if (snapshots == null) {
+			return;
+		}
+		Path path = snapshots.resolve(fileName(user));
+		if (!Files.exists(path)) {
+			return;
+		}
+		try {
+			interpreter.restore(Snapshot.open(path));
+		} catch (IOException | CalcException e) {
+			System.err.printf("Could not restore the session of %s: %s%n", user, e.getMessage());
+		}
+	}
+
+	private void save(Map.Entry<String, Session> entry) {
+		if (snapshots == null) {
+			return;
+		}
+		try {
+			entry.getValue().interpreter.save(snapshots.resolve(fileName(entry.getKey())));
+		} catch (IOException e) {
+			System.err.printf("Could not save the session of %s: %s%n", entry.getKey(), e
+					.getMessage());
+		}
+	}
+
+	/**
+	 * Nicknames may contain characters that file names can't, so all but
+	 * letters, digits, '-' and '_' are written as %XX.
+	 */
+	private static String fileName(String user) {
+		StringBuilder name = new StringBuilder();
+		for (byte b : user.getBytes(StandardCharsets.UTF_8)) {
+			if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+					|| b == '-' || b == '_') {
+				name.append((char) b);
+			} else {
+				name.append(String.format("%%%02X", b & 0xff));
+			}
+		}
+		return name.append(".snapshot").toString();
+	}
+
+}
@@ -0,0 +1,242 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import advancedjavacalculator.Interpreter.Scope;
+import advancedjavacalculator.Type.Obj;
+
+/**
+ * Keeps the variables of a {@link Scope} up to date like the cells of a
+ * spreadsheet. Every assignment is remembered as a formula along with the
+ * variables and functions it reads, following the bodies of the functions it
+ * calls. Assigning a variable or defining a function marks everything that
+ * reads it, directly or through other variables, as out of date, and nothing
+ * more happens until a statement reads one of those. Then only the ones it
+ * reads are worked out again, each after the out of date ones it reads, so an
+ * edit costs as much as the part of the model that depends on it.
+ * <p>
+ * An assignment that reads the variable it assigns, directly or through
+ * others, like x = x + 1, only sets the value, and so does one that assigns
+ * other variables along the way. What depends on it is still kept up to date.
+ */
+public final class Sheet {
+
+	private static final class Cell {
+
+		private final Expr formula;
+		private Set<String> reads;
+
+		private Cell(Expr formula, Set<String> reads) {
+			this.formula = formula;
+			this.reads = reads;
+		}
+
+	}
+
+	private final Interpreter interpreter;
+	private final Scope scope;
+	private final Map<String, Cell> cells = new HashMap<String, Cell>();
+	// Variable or function name -> the variables whose formulas read it
+	private final Map<String, Set<String>> readers = new HashMap<String, Set<String>>();
+	private final Set<String> stale = new HashSet<String>();
+	private final Set<String> updating = new HashSet<String>();
+	private long recomputed;
+
+	Sheet(Interpreter interpreter, Scope scope) {
+		this.interpreter = interpreter;
+		this.scope = scope;
+	}
+
+	public Scope getScope() {
+		return scope;
+	}
+
+	/**
+	 * Returns whether a variable has to be worked out again before it is
+	 * read.
+	 */
+	public synchronized boolean isStale(String name) {
+		return stale.contains(name);
+	}
+
+	/**
+	 * Returns how many variables were worked out again.
+	 */
+	public synchronized long getRecomputed() {
+		return recomputed;
+	}
+
+	/**
+	 * Brings every variable up to date, such as before all of them are shown
+	 * or saved. Those that fail keep their last value, and the first error is
+	 * thrown once the others are done.
+	 */
+	public synchronized void update() throws CalcException {
+		CalcException error = null;
+		for (String name : new HashSet<String>(stale)) {
+			try {
+				update(name);
+			} catch (CalcException e) {
+				if (error == null) {
+					error = e;
+				}
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * Brings the variables a statement reads up to date before it runs.
+	 */
+	synchronized void refresh(Expr statement) throws CalcException {
+		if (stale.isEmpty()) {
+			return;
+		}
+		for (String name : Dependencies.of(interpreter, scope, statement).getReads()) {
+			update(name);
+		}
+	}
+
+	/**
+	 * Records that a statement assigned the value of formula to a variable.
+	 */
+	synchronized void assigned(String name, Expr formula) {
+		Dependencies dependencies = Dependencies.of(interpreter, scope, formula);
+		Set<String> reads = dependencies.getReads();
+		if (dependencies.getWrites().isEmpty() && !reaches(reads, name)) {
+			link(name, new Cell(formula, reads));
+		} else {
+			link(name, null);
+		}
+		changed(name);
+	}
+
+	/**
+	 * Records that a statement defined a function.
+	 */
+	synchronized void defined(String name) {
+		link(name, null);
+		changed(name);
+	}
+
+	/**
+	 * Adds what the formulas of the given variables read to them, and what
+	 * those read, for working out which statements of a script depend on each
+	 * other.
+	 */
+	synchronized void addUpstream(Set<String> names) {
+		Deque<String> pending = new ArrayDeque<String>(names);
+		while (!pending.isEmpty()) {
+			Cell cell = cells.get(pending.pop());
+			if (cell != null) {
+				for (String read : cell.reads) {
+					if (names.add(read)) {
+						pending.push(read);
+					}
+				}
+			}
+		}
+	}
+
+	private void update(String name) throws CalcException {
+		if (!stale.contains(name)) {
+			return;
+		}
+		Cell cell = cells.get(name);
+		if (cell == null || scope.getVariableNoError(name) == null) {
+			// Cleared since, so there is nothing to keep up to date.
+			link(name, null);
+			stale.remove(name);
+			return;
+		}
+		if (!updating.add(name)) {
+			throw new CalcException("Interpreter", "The variable %s depends on itself", name);
+		}
+
+		try {
+			// Functions it calls may have been defined again since.
+			cell.reads = Dependencies.of(interpreter, scope, cell.formula).getReads();
+			link(name, cell);
+			for (String read : cell.reads) {
+				update(read);
+			}
+
+			Obj obj = interpreter.interpret(cell.formula, scope, null);
+			if (!obj.isNumber()) {
+				throw new CalcException("Interpreter", "Invalid value for variable %s", name);
+			}
+			scope.addVariable(name, obj);
+			stale.remove(name);
+			recomputed++;
+		} finally {
+			updating.remove(name);
+		}
+	}
+
+	/**
+	 * Replaces the cell of a variable, or removes it when cell is null, and
+	 * what it is recorded to read.
+	 */
+	private void link(String name, Cell cell) {
+		Cell old = cells.remove(name);
+		if (old != null) {
+			for (String read : old.reads) {
+				Set<String> set = readers.get(read);
+				if (set != null) {
+					set.remove(name);
+					if (set.isEmpty()) {
+						readers.remove(read);
+					}
+				}
+			}
+		}
+		if (cell != null) {
+			cells.put(name, cell);
+			for (String read : cell.reads) {
+				readers.computeIfAbsent(read, key -> new HashSet<String>()).add(name);
+			}
+		}
+	}
+
+	/**
+	 * Marks everything downstream of a name that was just assigned as out of
+	 * date.
+	 */
+	private void changed(String name) {
+		stale.remove(name);
+		Deque<String> pending = new ArrayDeque<String>();
+		pending.push(name);
+		while (!pending.isEmpty()) {
+			for (String reader : readers.getOrDefault(pending.pop(), Collections
+					.<String> emptySet())) {
+				if (stale.add(reader)) {
+					pending.push(reader);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns whether name is among reads or what their formulas read.
+	 */
+	private boolean reaches(Set<String> reads, String name) {
+		Set<String> upstream = new HashSet<String>(reads);
+		addUpstream(upstream);
+		return upstream.contains(name);
+	}
+
+}
@@ -0,0 +1,429 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import advancedjavacalculator.Expr.AssignExpr;
+import advancedjavacalculator.Expr.BinaryOpExpr;
+import advancedjavacalculator.Expr.CallExpr;
+import advancedjavacalculator.Expr.ConstantExpr;
+import advancedjavacalculator.Expr.GroupExpr;
+import advancedjavacalculator.Expr.LiteralExpr;
+import advancedjavacalculator.Expr.SlotExpr;
+import advancedjavacalculator.Interpreter.Scope;
+import advancedjavacalculator.Token.TokenType;
+import advancedjavacalculator.Type.ComplexNum;
+import advancedjavacalculator.Type.DoubleNum;
+import advancedjavacalculator.Type.Func;
+import advancedjavacalculator.Type.Obj;
+import advancedjavacalculator.Type.RealNum;
+
+/**
+ * The variables and functions of a {@link Scope} saved in a file. Numbers are
+ * kept as the bytes of their unscaled value and their scale, and functions as
+ * their parameters and the tree of their body, so restoring them parses
+ * nothing.
+ * <p>
+ * The file is mapped rather than read. Opening it only checks the header, and
+ * a scope the snapshot is restored into turns an entry into an object the
+ * first time it is looked up, finding it by a binary search over the sorted
+ * index. Restoring a scope with hundreds of thousands of definitions
+ * therefore takes about as long as restoring an empty one.
+ * <p>
+ * The layout is a header of a magic number, the format version and the entry
+ * count, then the offset of each entry sorted by name, then the entries. Each
+ * entry is its name and the length and bytes of its value.
+ */
+public final class Snapshot {
+
+	private static final int MAGIC = 0x414A4353; // "AJCS"
+	private static final int VERSION = 1;
+	private static final int HEADER = 12;
+
+	// Values
+	private static final byte REAL = 1, DOUBLE = 2, COMPLEX = 3, FUNC = 4;
+
+	// Tree nodes, which store their token's type by ordinal
+	private static final byte LITERAL = 1, GROUP = 2, BINARY_OP = 3, CALL = 4, ASSIGN = 5;
+
+	private final ByteBuffer buffer;
+	private final int count;
+
+	private Snapshot(ByteBuffer buffer) throws IOException {
+		if (buffer.capacity() < HEADER || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a calculator snapshot");
+		} else if (buffer.getInt(4) != VERSION) {
+			throw new IOException(String.format("Unsupported snapshot version %d", buffer
+					.getInt(4)));
+		}
+		this.buffer = buffer;
+		this.count = buffer.getInt(8);
+		if (count < 0 || HEADER + 4L * count > buffer.capacity()) {
+			throw new IOException("The snapshot is truncated");
+		}
+	}
+
+	/**
+	 * Maps a snapshot file. It stays mapped, and so readable, until the
+	 * snapshot is no longer referenced, even if the file is replaced.
+	 */
+	public static Snapshot open(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return new Snapshot(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Returns how many variables and functions were saved.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns how many bytes the entries take up together, which stands in
+	 * for their size in a scope until they are looked up.
+	 */
+	long getDataSize() {
+		return buffer.capacity() - HEADER - 4L * count;
+	}
+
+	/**
+	 * Returns the offset of the entry of name, or -1 if there is none.
+	 */
+	int find(String name) throws CalcException {
+		int low = 0, high = count - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int entry = getEntry(middle);
+			int cmp = getName(entry).compareTo(name);
+			if (cmp < 0) {
+				low = middle + 1;
+			} else if (cmp > 0) {
+				high = middle - 1;
+			} else {
+				return entry;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the offset of the i-th entry in name order.
+	 */
+	int getEntry(int i) {
+		return buffer.getInt(HEADER + 4 * i);
+	}
+
+	String getName(int entry) throws CalcException {
+		try {
+			return new Cursor(entry).readString();
+		} catch (RuntimeException e) {
+			throw damaged(entry);
+		}
+	}
+
+	/**
+	 * Returns how many bytes an entry takes up, name included.
+	 */
+	int getLength(int entry) throws CalcException {
+		try {
+			Cursor cursor = new Cursor(entry);
+			cursor.readString();
+			int length = cursor.readInt();
+			return cursor.position + length - entry;
+		} catch (RuntimeException e) {
+			throw damaged(entry);
+		}
+	}
+
+	/**
+	 * Turns an entry back into a number or function. Function bodies are
+	 * optimized the way {@link Interpreter} does when they are defined.
+	 */
+	Obj read(int entry, Optimizer optimizer) throws CalcException {
+		try {
+			Cursor cursor = new Cursor(entry);
+			cursor.readString();
+			cursor.readInt();
+			switch (cursor.readByte()) {
+				case REAL:
+					return new RealNum(cursor.readDecimal());
+				case DOUBLE:
+					return new DoubleNum(Double.longBitsToDouble(cursor.readLong()));
+				case COMPLEX:
+					return new ComplexNum(cursor.readDecimal(), cursor.readDecimal());
+				case FUNC:
+					int arity = cursor.readInt();
+					List<String> arguments = new ArrayList<String>(arity);
+					for (int i = 0; i < arity; i++) {
+						arguments.add(cursor.readString());
+					}
+					Expr body = cursor.readExpr();
+					return new Func(arguments, body, optimizer.optimize(body, arguments));
+				default:
+					throw damaged(entry);
+			}
+		} catch (RuntimeException e) {
+			throw damaged(entry);
+		}
+	}
+
+	private CalcException damaged(int entry) {
+		return new CalcException("Snapshot", "The entry at byte %d is damaged", entry);
+	}
+
+	/**
+	 * Reads a snapshot from a position on, without moving the position of the
+	 * buffer itself, so that several threads can read at once.
+	 */
+	private final class Cursor {
+
+		private int position;
+
+		private Cursor(int position) {
+			this.position = position;
+		}
+
+		private byte readByte() {
+			return buffer.get(position++);
+		}
+
+		private int readInt() {
+			int value = buffer.getInt(position);
+			position += 4;
+			return value;
+		}
+
+		private long readLong() {
+			long value = buffer.getLong(position);
+			position += 8;
+			return value;
+		}
+
+		private byte[] readBytes() {
+			byte[] bytes = new byte[readInt()];
+			buffer.get(position, bytes);
+			position += bytes.length;
+			return bytes;
+		}
+
+		private String readString() {
+			return new String(readBytes(), StandardCharsets.UTF_8);
+		}
+
+		private BigDecimal readDecimal() {
+			int scale = readInt();
+			return new BigDecimal(new BigInteger(readBytes()), scale);
+		}
+
+		private Expr readExpr() throws CalcException {
+			byte kind = readByte();
+			TokenType type = TokenType.values()[readByte()];
+			String match = readString();
+			Token token = new Token(match, type, 0, match.length());
+
+			switch (kind) {
+				case LITERAL:
+					return new LiteralExpr(token);
+				case GROUP:
+					return new GroupExpr(token, readExpr());
+				case BINARY_OP:
+					Expr left = readExpr();
+					return new BinaryOpExpr(token, left, readExpr());
+				case CALL:
+					Expr callee = readExpr();
+					int size = readInt();
+					List<Expr> arguments = new ArrayList<Expr>(size);
+					for (int i = 0; i < size; i++) {
+						arguments.add(readExpr());
+					}
+					return new CallExpr(token, callee, arguments);
+				case ASSIGN:
+					Expr def = readExpr();
+					return new AssignExpr(token, def, readExpr());
+				default:
+					throw new IllegalStateException();
+			}
+		}
+
+	}
+
+	/**
+	 * Saves the variables and functions of a scope, including the ones it
+	 * hasn't looked up yet from a snapshot it was restored from. The file is
+	 * written next to path and then moved over it, so a scope can be saved to
+	 * the file it was restored from.
+	 */
+	public static void write(Scope scope, Path path) throws IOException {
+		Map<String, Obj> loaded;
+		Snapshot restored;
+		synchronized (scope) {
+			loaded = new HashMap<String, Obj>(scope.getVariables());
+			restored = scope.getSnapshot();
+		}
+
+		// Name -> value or, for entries never looked up, the saved bytes
+		TreeMap<String, Object> entries = new TreeMap<String, Object>();
+		if (restored != null) {
+			try {
+				for (int i = 0; i < restored.count; i++) {
+					int entry = restored.getEntry(i);
+					byte[] bytes = new byte[restored.getLength(entry)];
+					restored.buffer.get(entry, bytes);
+					entries.put(restored.getName(entry), bytes);
+				}
+			} catch (CalcException e) {
+				throw new IOException(e.getMessage());
+			}
+		}
+		entries.putAll(loaded);
+
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(data);
+		int[] index = new int[entries.size()];
+		int i = 0;
+		long offset = HEADER + 4L * index.length;
+		for (Map.Entry<String, Object> entry : entries.entrySet()) {
+			if (offset + data.size() > Integer.MAX_VALUE) {
+				throw new IOException("Too much to save in one snapshot");
+			}
+			index[i++] = (int) offset + data.size();
+			if (entry.getValue() instanceof byte[]) {
+				out.write((byte[]) entry.getValue());
+			} else {
+				writeString(out, entry.getKey());
+				byte[] value = encode((Obj) entry.getValue());
+				out.writeInt(value.length);
+				out.write(value);
+			}
+		}
+
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16)) {
+			DataOutputStream header = new DataOutputStream(file);
+			header.writeInt(MAGIC);
+			header.writeInt(VERSION);
+			header.writeInt(index.length);
+			for (int entry : index) {
+				header.writeInt(entry);
+			}
+			data.writeTo(file);
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static byte[] encode(Obj obj) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		switch (obj.getType()) {
+			case RealNum:
+				out.writeByte(REAL);
+				writeDecimal(out, ((RealNum) obj).getNumber());
+				break;
+			case DoubleNum:
+				out.writeByte(DOUBLE);
+				out.writeLong(Double.doubleToRawLongBits(((DoubleNum) obj).getNumber()));
+				break;
+			case ComplexNum:
+				out.writeByte(COMPLEX);
+				writeDecimal(out, ((ComplexNum) obj).getReal());
+				writeDecimal(out, ((ComplexNum) obj).getImaginary());
+				break;
+			case Func:
+				Func func = (Func) obj;
+				out.writeByte(FUNC);
+				out.writeInt(func.getArguments().size());
+				for (String argument : func.getArguments()) {
+					writeString(out, argument);
+				}
+				writeExpr(out, func.getBody());
+				break;
+			default:
+				throw new IOException(String.format("Cannot save a(n) %s", obj.getType()));
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void writeString(DataOutputStream out, String string) throws IOException {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeDecimal(DataOutputStream out, BigDecimal number) throws IOException {
+		out.writeInt(number.scale());
+		byte[] unscaled = number.unscaledValue().toByteArray();
+		out.writeInt(unscaled.length);
+		out.write(unscaled);
+	}
+
+	private static void writeExpr(DataOutputStream out, Expr expr) throws IOException {
+		if (expr instanceof ConstantExpr) {
+			// Folded again when the body is optimized.
+			writeExpr(out, ((ConstantExpr) expr).getExpr());
+			return;
+		}
+
+		byte kind;
+		if (expr instanceof LiteralExpr || expr instanceof SlotExpr) {
+			kind = LITERAL;
+		} else if (expr instanceof GroupExpr) {
+			kind = GROUP;
+		} else if (expr instanceof BinaryOpExpr) {
+			kind = BINARY_OP;
+		} else if (expr instanceof CallExpr) {
+			kind = CALL;
+		} else if (expr instanceof AssignExpr) {
+			kind = ASSIGN;
+		} else {
+			throw new IOException(String.format("Cannot save %s", expr));
+		}
+		out.writeByte(kind);
+		out.writeByte(expr.getToken().getType().ordinal());
+		writeString(out, expr.getToken().getMatch());
+
+		if (expr instanceof GroupExpr) {
+			writeExpr(out, ((GroupExpr) expr).getExpr());
+		} else if (expr instanceof BinaryOpExpr) {
+			writeExpr(out, ((BinaryOpExpr) expr).getLeftExpr());
+			writeExpr(out, ((BinaryOpExpr) expr).getRightExpr());
+		} else if (expr instanceof CallExpr) {
+			CallExpr call = (CallExpr) expr;
+			writeExpr(out, call.getExpr());
+			out.writeInt(call.getArguments().size());
+			for (Expr argument : call.getArguments()) {
+				writeExpr(out, argument);
+			}
+		} else if (expr instanceof AssignExpr) {
+			writeExpr(out, ((AssignExpr) expr).getDef());
+			writeExpr(out, ((AssignExpr) expr).getVal());
+		}
+	}
+
+}
@@ -0,0 +1,334 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * Where the time goes, for the whole process. Each phase of a calculation has
+ * a latency histogram, and the outcomes of requests are counted. Calls to each
+ * builtin and user function are counted on the {@link Builtin} and
+ * {@link Type.Func} themselves.
+ *
+ * The same things are emitted as JFR events under "Advanced Java Calculator",
+ * so a recording (java -XX:StartFlightRecording ...) shows them next to GC and
+ * thread activity. Events cost next to nothing while nothing is recording.
+ */
+public final class Stats {
+
+	private Stats() {}
+
+	/**
+	 * A histogram of durations in nanoseconds. Every power of two is split
+	 * into 8 buckets, so percentiles are within about 6% of the true value.
+	 */
+	public static final class Histogram {
+
+		private static final int SUB_BUCKETS = 8;
+
+		private final String name;
+		private final AtomicLongArray buckets = new AtomicLongArray(62 * SUB_BUCKETS);
+		private final LongAdder total = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		Histogram(String name) {
+			this.name = name;
+		}
+
+		public void record(long nanos) {
+			if (nanos < 0) {
+				nanos = 0;
+			}
+			buckets.incrementAndGet(index(nanos));
+			total.add(nanos);
+			if (nanos > max.get()) {
+				max.accumulateAndGet(nanos, Math::max);
+			}
+		}
+
+		public long getCount() {
+			long n = 0;
+			for (int i = 0; i < buckets.length(); i++) {
+				n += buckets.get(i);
+			}
+			return n;
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		public double getMean() {
+			long n = getCount();
+			return (n == 0) ? 0 : (double) total.sum() / n;
+		}
+
+		/**
+		 * Returns the duration that the given fraction of the recorded ones
+		 * were at or below, such as 0.99 for the 99th percentile.
+		 */
+		public long getPercentile(double fraction) {
+			long rank = (long) Math.ceil(fraction * getCount());
+
+			long seen = 0;
+			for (int i = 0; i < buckets.length(); i++) {
+				seen += buckets.get(i);
+				if (seen >= Math.max(rank, 1)) {
+					return Math.min(middle(i), max.get());
+				}
+			}
+			return 0;
+		}
+
+		public void reset() {
+			for (int i = 0; i < buckets.length(); i++) {
+				buckets.set(i, 0);
+			}
+			total.reset();
+			max.set(0);
+		}
+
+		private static int index(long nanos) {
+			if (nanos < SUB_BUCKETS) {
+				return (int) nanos;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+			int sub = (int) (nanos >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+			return (exponent - 2) * SUB_BUCKETS + sub;
+		}
+
+		private static long middle(int index) {
+			if (index < SUB_BUCKETS) {
+				return index;
+			}
+			int exponent = index / SUB_BUCKETS + 2;
+			long width = 1L << (exponent - 3);
+			return (SUB_BUCKETS + index % SUB_BUCKETS) * width + width / 2;
+		}
+
+		/**
+		 * For example "eval: 1200 (35.2/s), mean 4.1us, p50 2.1us, p99 17us,
+		 * max 1.2ms".
+		 */
+		@Override
+		public String toString() {
+			long n = getCount();
+			if (n == 0) {
+				return name + ": 0";
+			}
+			return String.format(Locale.ROOT, "%s: %d (%s/s), mean %s, p50 %s, p99 %s, max %s",
+					name, n, rate(n), duration((long) getMean()), duration(getPercentile(0.5)),
+					duration(getPercentile(0.99)), duration(getMax()));
+		}
+
+	}
+
+	public static final Histogram LEX = new Histogram("lex");
+	public static final Histogram PARSE = new Histogram("parse");
+	public static final Histogram EVAL = new Histogram("eval");
+	public static final Histogram REQUEST = new Histogram("request");
+	public static final Histogram IRC = new Histogram("irc");
+
+	private static final Histogram[] HISTOGRAMS = { LEX, PARSE, EVAL, REQUEST, IRC };
+
+	private static final LongAdder requests = new LongAdder();
+	private static final LongAdder errors = new LongAdder();
+	private static final LongAdder cancelled = new LongAdder();
+	private static final LongAdder timedOut = new LongAdder();
+	private static final LongAdder rejected = new LongAdder();
+
+	private static volatile long since = System.nanoTime();
+
+	static {
+		FlightRecorder.addPeriodicEvent(CountersEvent.class, () -> {
+			CountersEvent event = new CountersEvent();
+			event.requests = requests.sum();
+			event.errors = errors.sum();
+			event.cancelled = cancelled.sum();
+			event.timedOut = timedOut.sum();
+			event.rejected = rejected.sum();
+			event.commit();
+		});
+	}
+
+	/**
+	 * Counts a finished request.
+	 *
+	 * @param error whether it ended in an error
+	 * @param interrupted whether it was cut short, for a timeout or because the
+	 *            calculator is shutting down
+	 */
+	static void request(boolean error, boolean interrupted) {
+		requests.increment();
+		if (error) {
+			errors.increment();
+		}
+		if (interrupted) {
+			cancelled.increment();
+		}
+	}
+
+	static void timedOut() {
+		timedOut.increment();
+	}
+
+	static void rejected(String user, String reason) {
+		rejected.increment();
+
+		RejectedEvent event = new RejectedEvent();
+		if (event.shouldCommit()) {
+			event.user = user;
+			event.reason = reason;
+			event.commit();
+		}
+	}
+
+	public static Histogram getHistogram(String name) {
+		for (Histogram histogram : HISTOGRAMS) {
+			if (histogram.name.equals(name)) {
+				return histogram;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Starts the counting over. The counts on builtins and functions are kept
+	 * where they are and have to be reset separately.
+	 */
+	public static void reset() {
+		for (Histogram histogram : HISTOGRAMS) {
+			histogram.reset();
+		}
+		requests.reset();
+		errors.reset();
+		cancelled.reset();
+		timedOut.reset();
+		rejected.reset();
+		since = System.nanoTime();
+	}
+
+	/**
+	 * For example "120 requests (3.2/s), 2 errors, 1 cancelled, 1 timed out, 0
+	 * rejected".
+	 */
+	public static String summary() {
+		long n = requests.sum();
+		return String.format(Locale.ROOT,
+				"%d requests (%s/s), %d errors, %d cancelled, %d timed out, %d rejected", n,
+				rate(n), errors.sum(), cancelled.sum(), timedOut.sum(), rejected.sum());
+	}
+
+	private static String rate(long n) {
+		double seconds = (System.nanoTime() - since) / 1e9;
+		return String.format(Locale.ROOT, "%.1f", (seconds > 0) ? n / seconds : 0.0);
+	}
+
+	static String duration(long nanos) {
+		if (nanos < 1000) {
+			return nanos + "ns";
+		} else if (nanos < 1000000) {
+			return String.format(Locale.ROOT, "%.1fus", nanos / 1e3);
+		} else if (nanos < 1000000000) {
+			return String.format(Locale.ROOT, "%.1fms", nanos / 1e6);
+		}
+		return String.format(Locale.ROOT, "%.2fs", nanos / 1e9);
+	}
+
+	@Name("advancedjavacalculator.Request")
+	@Label("Request")
+	@Description("A line of input evaluated for a user")
+	@Category("Advanced Java Calculator")
+	@StackTrace(false)
+	static final class RequestEvent extends Event {
+
+		@Label("Input")
+		String input;
+
+		@Label("Error")
+		boolean error;
+
+	}
+
+	@Name("advancedjavacalculator.Parse")
+	@Label("Parse")
+	@Description("Input turned into statements, from the parse cache or by lexing and parsing it")
+	@Category("Advanced Java Calculator")
+	@StackTrace(false)
+	static final class ParseEvent extends Event {
+
+		@Label("Cached")
+		boolean cached;
+
+	}
+
+	@Name("advancedjavacalculator.Eval")
+	@Label("Evaluation")
+	@Description("A statement evaluated by the interpreter")
+	@Category("Advanced Java Calculator")
+	@StackTrace(false)
+	static final class EvalEvent extends Event {
+
+		@Label("Number Mode")
+		String mode;
+
+		@Label("Precision")
+		int precision;
+
+	}
+
+	@Name("advancedjavacalculator.Rejected")
+	@Label("Rejected Request")
+	@Description("A request turned away or cut short by the request executor")
+	@Category("Advanced Java Calculator")
+	static final class RejectedEvent extends Event {
+
+		@Label("User")
+		String user;
+
+		@Label("Reason")
+		String reason;
+
+	}
+
+	@Name("advancedjavacalculator.Counters")
+	@Label("Request Counters")
+	@Category("Advanced Java Calculator")
+	@Period("1 s")
+	@StackTrace(false)
+	static final class CountersEvent extends Event {
+
+		@Label("Requests")
+		long requests;
+
+		@Label("Errors")
+		long errors;
+
+		@Label("Cancelled")
+		long cancelled;
+
+		@Label("Timed Out")
+		long timedOut;
+
+		@Label("Rejected")
+		long rejected;
+
+	}
+
+}
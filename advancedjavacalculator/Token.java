@@ -6,6 +6,9 @@
 
 package advancedjavacalculator;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class Token {
 
 	enum TokenType {
@@ -37,45 +40,57 @@ public class Token {
 
 		}
 
-		public static boolean isValidToken(String token) {
-			return isValidKeyword(token) || isValidSymbol(token);
-		}
+		private static final Map<String, TokenType> SYMBOLS = new HashMap<>();
+		private static final Map<String, TokenType> KEYWORDS = new HashMap<>();
 
-		public static boolean isValidKeyword(String token) {
+		static {
 			for (TokenType type : values()) {
-				if (type.canMatch && type.keyword && type.match.equals(token)) {
-					return true;
+				if (type.canMatch) {
+					(type.keyword ? KEYWORDS : SYMBOLS).put(type.match, type);
 				}
 			}
+		}
 
-			return false;
+		String getSymbol() {
+			return match;
 		}
 
-		public static boolean isValidSymbol(String token) {
-			for (TokenType type : values()) {
-				if (type.canMatch && !type.keyword && type.match.equals(token)) {
-					return true;
-				}
+		/**
+		 * Returns the keyword spelled by input[start, end), or null.
+		 */
+		static TokenType keyword(String input, int start, int end) {
+			if (KEYWORDS.isEmpty()) {
+				return null;
 			}
+			return KEYWORDS.get(input.substring(start, end));
+		}
+
+		public static boolean isValidToken(String token) {
+			return isValidKeyword(token) || isValidSymbol(token);
+		}
 
-			return false;
+		public static boolean isValidKeyword(String token) {
+			return KEYWORDS.containsKey(token);
+		}
+
+		public static boolean isValidSymbol(String token) {
+			return SYMBOLS.containsKey(token);
 		}
 
 		public static TokenType tokenToType(String token) {
-			for (TokenType type : values()) {
-				if (type.canMatch && type.match.equals(token)) {
-					return type;
-				}
+			TokenType type = SYMBOLS.get(token);
+			if (type == null) {
+				type = KEYWORDS.get(token);
 			}
-
-			return Unknown;
+			return (type == null) ? Unknown : type;
 		}
 
 	}
 
-	private String match;
-	private TokenType type;
-	private int start, end;
+	private volatile String match;
+	private String source;
+	private final TokenType type;
+	private final int start, end;
 
 	Token(String match, TokenType type, int start, int end) {
 		this.match = (match.equals("\n")) ? "\\n" : match;
@@ -84,7 +99,33 @@ public class Token {
 		this.end = end;
 	}
 
+	/**
+	 * Creates a token whose text is source[start, end), copied out the first
+	 * time it is asked for.
+	 */
+	static Token slice(String source, TokenType type, int start, int end) {
+		return new Token(type, source, start, end);
+	}
+
+	private Token(TokenType type, String source, int start, int end) {
+		this.source = source;
+		this.type = type;
+		this.start = start;
+		this.end = end;
+	}
+
 	public String getMatch() {
+		String match = this.match;
+		if (match == null) {
+			synchronized (this) {
+				match = this.match;
+				if (match == null) {
+					this.match = match = source.substring(start, end);
+					// Tokens can outlive the input they came from.
+					source = null;
+				}
+			}
+		}
 		return match;
 	}
 
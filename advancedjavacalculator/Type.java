@@ -3,9 +3,10 @@ package advancedjavacalculator;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 public enum Type {
-	Func, Num, RealNum, ComplexNum;
+	Func, Num, RealNum, DoubleNum, ComplexNum;
 
 	public abstract static class Obj {
 
@@ -20,7 +21,15 @@ public enum Type {
 		}
 
 		public boolean isNumber() {
-			return type == Num || type == RealNum || type == ComplexNum;
+			return type == Num || type == RealNum || type == DoubleNum || type == ComplexNum;
+		}
+
+		/**
+		 * A rough guess of how many bytes this object takes up, used to
+		 * enforce the memory limits on a scope.
+		 */
+		public long estimateSize() {
+			return 16;
 		}
 
 	}
@@ -29,11 +38,27 @@ public enum Type {
 
 		private List<String> arguments;
 		private Expr body;
+		private Expr code;
+		private int frameSize;
+		private volatile Compiler.Compiled compiled;
+		private volatile ParallelEvaluator.Cost cost;
+		private volatile Memo memo;
+		private final LongAdder calls = new LongAdder();
 
 		public Func(List<String> arguments, Expr body) {
+			this(arguments, body, body);
+		}
+
+		/**
+		 * @param body the body as it was written, used for display
+		 * @param code the equivalent tree that is actually evaluated
+		 */
+		public Func(List<String> arguments, Expr body, Expr code) {
 			super(Type.Func);
 			this.arguments = arguments;
 			this.body = body;
+			this.code = code;
+			this.frameSize = Optimizer.getFrameSize(code, arguments.size());
 		}
 
 		public List<String> getArguments() {
@@ -44,6 +69,70 @@ public enum Type {
 			return body;
 		}
 
+		public Expr getCode() {
+			return code;
+		}
+
+		/**
+		 * Returns how many slots a call needs for the arguments and the
+		 * variables the body assigns.
+		 */
+		int getFrameSize() {
+			return frameSize;
+		}
+
+		Compiler.Compiled getCompiled() {
+			return compiled;
+		}
+
+		void setCompiled(Compiler.Compiled compiled) {
+			this.compiled = compiled;
+		}
+
+		/**
+		 * Returns what a call was last estimated to take, or null.
+		 */
+		ParallelEvaluator.Cost getCost() {
+			return cost;
+		}
+
+		void setCost(ParallelEvaluator.Cost cost) {
+			this.cost = cost;
+		}
+
+		/**
+		 * Returns the cache of this function's results, or null when it isn't
+		 * memoized.
+		 */
+		public Memo getMemo() {
+			return memo;
+		}
+
+		public void setMemo(Memo memo) {
+			this.memo = memo;
+		}
+
+		/**
+		 * Returns how many times this definition was called, including calls
+		 * answered from its memo.
+		 */
+		public long getCalls() {
+			return calls.sum();
+		}
+
+		public void resetCalls() {
+			calls.reset();
+		}
+
+		void countCall() {
+			calls.increment();
+		}
+
+		@Override
+		public long estimateSize() {
+			return 64 + 16 * arguments.size() + 8 * body.toString().length();
+		}
+
 		@Override
 		public String toString() {
 			return arguments + " -> " + body;
@@ -69,11 +158,19 @@ public enum Type {
 
 		public abstract Num pow(Num other) throws CalcException;
 
+		/**
+		 * Like {@link #pow(Num)}, rounding inexact results to mathContext.
+		 */
+		public Num pow(Num other, MathContext mathContext) throws CalcException {
+			return pow(other);
+		}
+
 	}
 
 	public static class RealNum extends Num {
 
 		private BigDecimal number;
+		private volatile double[] doubleBounds;
 
 		public RealNum(BigDecimal rational) {
 			super(Type.RealNum);
@@ -88,7 +185,13 @@ public enum Type {
 		public Num add(Num other) throws CalcException {
 			switch (other.getType()) {
 				case RealNum:
-					return new RealNum(number.add(((RealNum) other).getNumber()));
+					BigDecimal addend = ((RealNum) other).getNumber();
+					if (Budget.isMetered()) {
+						checkSum("a sum", addend);
+					}
+					return new RealNum(number.add(addend));
+				case DoubleNum:
+					return new DoubleNum(number.doubleValue()).add(other);
 				default:
 					throw new CalcException("Interpreter", "Cannot add a Rational and a(n) %s",
 							other.getType());
@@ -100,7 +203,13 @@ public enum Type {
 		public Num sub(Num other) throws CalcException {
 			switch (other.getType()) {
 				case RealNum:
-					return new RealNum(number.subtract(((RealNum) other).getNumber()));
+					BigDecimal subtrahend = ((RealNum) other).getNumber();
+					if (Budget.isMetered()) {
+						checkSum("a difference", subtrahend);
+					}
+					return new RealNum(number.subtract(subtrahend));
+				case DoubleNum:
+					return new DoubleNum(number.doubleValue()).sub(other);
 				default:
 					throw new CalcException("Interpreter", "Cannot add a Rational and a(n) %s",
 							other.getType());
@@ -111,7 +220,15 @@ public enum Type {
 		public Num mul(Num other) throws CalcException {
 			switch (other.getType()) {
 				case RealNum:
-					return new RealNum(number.multiply(((RealNum) other).getNumber()));
+					BigDecimal multiplier = ((RealNum) other).getNumber();
+					if (Budget.isMetered()) {
+						Budget.checkSize("a product", (long) number.precision()
+								+ multiplier.precision(), (long) number.scale()
+								+ multiplier.scale());
+					}
+					return new RealNum(number.multiply(multiplier));
+				case DoubleNum:
+					return new DoubleNum(number.doubleValue()).mul(other);
 				default:
 					throw new CalcException("Interpreter", "Cannot add a Rational and a(n) %s",
 							other.getType());
@@ -122,7 +239,17 @@ public enum Type {
 		public Num div(Num other) throws CalcException {
 			switch (other.getType()) {
 				case RealNum:
-					return new RealNum(number.divide(((RealNum) other).getNumber()));
+					// An exact division works to this many digits before it
+					// gives up on a repeating quotient.
+					BigDecimal divisor = ((RealNum) other).getNumber();
+					if (Budget.isMetered()) {
+						Budget.checkSize("a quotient", number.precision()
+								+ (long) Math.ceil(10.0 * divisor.precision() / 3), (long) number
+								.scale() - divisor.scale());
+					}
+					return new RealNum(number.divide(divisor));
+				case DoubleNum:
+					return new DoubleNum(number.doubleValue()).div(other);
 				default:
 					throw new CalcException("Interpreter", "Cannot add a Rational and a(n) %s",
 							other.getType());
@@ -133,18 +260,44 @@ public enum Type {
 		public Num mod(Num other) throws CalcException {
 			switch (other.getType()) {
 				case RealNum:
-					return new RealNum(number.remainder(((RealNum) other).getNumber()));
+					// The remainder is worked out from the whole quotient.
+					BigDecimal modulus = ((RealNum) other).getNumber();
+					if (Budget.isMetered()) {
+						long quotient = Math.max(0, (long) number.precision() - number.scale()
+								- modulus.precision() + modulus.scale());
+						Budget.checkSize("a remainder", quotient + Math.max(number.precision(),
+								modulus.precision()), Math.max(number.scale(), modulus.scale()));
+					}
+					return new RealNum(number.remainder(modulus));
+				case DoubleNum:
+					return new DoubleNum(number.doubleValue()).mod(other);
 				default:
 					throw new CalcException("Interpreter", "Cannot add a Rational and a(n) %s",
 							other.getType());
 			}
 		}
 
+		/**
+		 * Raises this to other in {@link MathContext#DECIMAL128}.
+		 */
 		@Override
 		public Num pow(Num other) throws CalcException {
+			return pow(other, MathContext.DECIMAL128);
+		}
+
+		@Override
+		public Num pow(Num other, MathContext mathContext) throws CalcException {
 			switch (other.getType()) {
 				case RealNum:
-					return pow(((RealNum) other).getNumber());
+					try {
+						BigDecimal exponent = ((RealNum) other).getNumber();
+						Budget.checkPow(number, exponent, mathContext);
+						return new RealNum(BigMath.pow(number, exponent, mathContext));
+					} catch (ArithmeticException e) {
+						throw new CalcException("Interpreter", e.getMessage());
+					}
+				case DoubleNum:
+					return new DoubleNum(number.doubleValue()).pow(other);
 				default:
 					throw new CalcException("Interpreter", "Cannot add a Rational and a(n) %s",
 							other.getType());
@@ -155,18 +308,45 @@ public enum Type {
 			return number;
 		}
 
-		private RealNum pow(BigDecimal right) throws CalcException {
-			double leftDouble = number.doubleValue();
-			MathContext mathContext = new MathContext(number.precision());
+		/**
+		 * A sum has the whole digits of the larger operand, one more for the
+		 * carry, and the fraction digits of the longer one.
+		 */
+		private void checkSum(String op, BigDecimal other) throws CalcException {
+			long scale = Math.max(number.scale(), other.scale());
+			long whole = Math.max((long) number.precision() - number.scale(), (long) other
+					.precision() - other.scale());
+			Budget.checkSize(op, whole + 1 + scale, scale);
+		}
 
-			BigDecimal remainderOf2 = right.remainder(BigDecimal.ONE, mathContext);
-			BigDecimal rightIntPart = right.subtract(remainderOf2, mathContext);
+		/**
+		 * Returns the closest doubles at or below and at or above this number.
+		 * They are the same double when the number is exactly representable.
+		 */
+		double[] getDoubleBounds() {
+			double[] bounds = doubleBounds;
+			if (bounds == null) {
+				double d = number.doubleValue();
+				int cmp = Double.isInfinite(d) ? 0 : number.compareTo(new BigDecimal(d));
+				bounds = new double[] { cmp < 0 ? Math.nextDown(d) : d, cmp > 0 ? Math.nextUp(d) : d };
+				doubleBounds = bounds;
+			}
+			return bounds;
+		}
 
-			BigDecimal intPow = number.pow(rightIntPart.intValueExact(), mathContext);
-			BigDecimal doublePow = new BigDecimal(Math.pow(leftDouble, remainderOf2.doubleValue()),
-					mathContext);
+		@Override
+		public long estimateSize() {
+			return 48 + number.unscaledValue().bitLength() / 8;
+		}
 
-			return new RealNum(intPow.multiply(doublePow, mathContext));
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof RealNum && number.equals(((RealNum) obj).number);
+		}
+
+		@Override
+		public int hashCode() {
+			return number.hashCode();
 		}
 
 		@Override
@@ -176,6 +356,97 @@ public enum Type {
 
 	}
 
+	public static class DoubleNum extends Num {
+
+		private final double number;
+
+		public DoubleNum(double number) {
+			super(Type.DoubleNum);
+			this.number = number;
+		}
+
+		@Override
+		public Num add(Num other) throws CalcException {
+			return new DoubleNum(number + toDouble(other, "add"));
+		}
+
+		@Override
+		public Num sub(Num other) throws CalcException {
+			return new DoubleNum(number - toDouble(other, "subtract"));
+		}
+
+		@Override
+		public Num mul(Num other) throws CalcException {
+			return new DoubleNum(number * toDouble(other, "multiply"));
+		}
+
+		@Override
+		public Num div(Num other) throws CalcException {
+			return new DoubleNum(div(number, toDouble(other, "divide")));
+		}
+
+		@Override
+		public Num mod(Num other) throws CalcException {
+			return new DoubleNum(mod(number, toDouble(other, "mod")));
+		}
+
+		@Override
+		public Num pow(Num other) throws CalcException {
+			return new DoubleNum(Math.pow(number, toDouble(other, "pow")));
+		}
+
+		public double getNumber() {
+			return number;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof DoubleNum
+					&& Double.doubleToLongBits(number) == Double
+							.doubleToLongBits(((DoubleNum) obj).number);
+		}
+
+		@Override
+		public int hashCode() {
+			return Double.hashCode(number);
+		}
+
+		static double div(double left, double right) throws CalcException {
+			if (right == 0) {
+				throw new CalcException("Interpreter", "Division by zero");
+			}
+			return left / right;
+		}
+
+		static double mod(double left, double right) throws CalcException {
+			if (right == 0) {
+				throw new CalcException("Interpreter", "Division by zero");
+			}
+			return left % right;
+		}
+
+		private static double toDouble(Num other, String op) throws CalcException {
+			switch (other.getType()) {
+				case DoubleNum:
+					return ((DoubleNum) other).getNumber();
+				case RealNum:
+					return ((RealNum) other).getNumber().doubleValue();
+				default:
+					throw new CalcException("Interpreter", "Cannot %s a DoubleNum and a(n) %s", op,
+							other.getType());
+			}
+		}
+
+		@Override
+		public String toString() {
+			if (Double.isNaN(number) || Double.isInfinite(number)) {
+				return Double.toString(number);
+			}
+			return BigDecimal.valueOf(number).stripTrailingZeros().toPlainString();
+		}
+
+	}
+
 	public static class ComplexNum extends Num {
 
 		private BigDecimal real;
@@ -249,6 +520,20 @@ public enum Type {
 			return imaginary;
 		}
 
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ComplexNum)) {
+				return false;
+			}
+			ComplexNum other = (ComplexNum) obj;
+			return real.equals(other.real) && imaginary.equals(other.imaginary);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * real.hashCode() + imaginary.hashCode();
+		}
+
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,166 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A small benchmark harness in the spirit of JMH's average time mode. Each
+ * benchmark is warmed up, then measured over several fixed-length iterations;
+ * the score is the mean time per operation with a 99.9% confidence error.
+ * Results can be written out in the same JSON layout JMH uses, so existing
+ * tooling can read them.
+ */
+public class Bench {
+
+	public interface Task {
+		Object run() throws Exception;
+	}
+
+	public static class Result {
+
+		private final String benchmark;
+		private final Map<String, String> params;
+		private final double score;
+		private final double error;
+		private final int iterations;
+
+		Result(String benchmark, Map<String, String> params, double score, double error,
+				int iterations) {
+			this.benchmark = benchmark;
+			this.params = params;
+			this.score = score;
+			this.error = error;
+			this.iterations = iterations;
+		}
+
+		public String getBenchmark() {
+			return benchmark;
+		}
+
+		public double getScore() {
+			return score;
+		}
+
+		public double getError() {
+			return error;
+		}
+
+	}
+
+	private final int warmupIterations;
+	private final int iterations;
+	private final long iterationNanos;
+	private final String filter;
+	private final List<Result> results = new ArrayList<Result>();
+
+	/** Keeps results reachable so the JIT can't drop the work. */
+	private volatile int sink;
+
+	public Bench(int warmupIterations, int iterations, long iterationMillis, String filter) {
+		this.warmupIterations = warmupIterations;
+		this.iterations = iterations;
+		this.iterationNanos = iterationMillis * 1000000L;
+		this.filter = filter;
+	}
+
+	public static Map<String, String> params(String... keyValues) {
+		Map<String, String> params = new LinkedHashMap<String, String>();
+		for (int i = 0; i + 1 < keyValues.length; i += 2) {
+			params.put(keyValues[i], keyValues[i + 1]);
+		}
+		return params;
+	}
+
+	public void run(String benchmark, Map<String, String> params, Task task) throws Exception {
+		String id = benchmark + params;
+		if (filter != null && !id.contains(filter)) {
+			return;
+		}
+
+		for (int i = 0; i < warmupIterations; i++) {
+			iteration(task);
+		}
+
+		double[] samples = new double[iterations];
+		for (int i = 0; i < iterations; i++) {
+			samples[i] = iteration(task);
+		}
+
+		double mean = 0;
+		for (double sample : samples) {
+			mean += sample;
+		}
+		mean /= samples.length;
+
+		double variance = 0;
+		for (double sample : samples) {
+			variance += (sample - mean) * (sample - mean);
+		}
+		double error = samples.length > 1
+				? 3.29 * Math.sqrt(variance / (samples.length - 1)) / Math.sqrt(samples.length)
+				: Double.NaN;
+
+		Result result = new Result(benchmark, params, mean, error, samples.length);
+		results.add(result);
+		System.err.printf(Locale.ROOT, "%-40s %-30s %14.1f +- %10.1f ns/op%n", benchmark,
+				params.isEmpty() ? "" : params.toString(), mean, error);
+	}
+
+	private double iteration(Task task) throws Exception {
+		long ops = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			sink ^= System.identityHashCode(task.run());
+			ops++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < iterationNanos);
+		return elapsed / (double) ops;
+	}
+
+	public List<Result> getResults() {
+		return results;
+	}
+
+	public String toJson() {
+		StringBuilder json = new StringBuilder("[\n");
+		for (int i = 0; i < results.size(); i++) {
+			Result result = results.get(i);
+			json.append("    {\n");
+			json.append("        \"benchmark\" : \"").append(result.benchmark).append("\",\n");
+			json.append("        \"mode\" : \"avgt\",\n");
+			json.append("        \"measurementIterations\" : ").append(result.iterations)
+					.append(",\n");
+			json.append("        \"params\" : {");
+			int param = 0;
+			for (Map.Entry<String, String> entry : result.params.entrySet()) {
+				json.append(param++ == 0 ? "\n" : ",\n");
+				json.append("            \"").append(entry.getKey()).append("\" : \"")
+						.append(entry.getValue()).append("\"");
+			}
+			json.append(param == 0 ? "},\n" : "\n        },\n");
+			json.append("        \"primaryMetric\" : {\n");
+			json.append("            \"score\" : ").append(number(result.score)).append(",\n");
+			json.append("            \"scoreError\" : ").append(number(result.error))
+					.append(",\n");
+			json.append("            \"scoreUnit\" : \"ns/op\"\n");
+			json.append("        }\n");
+			json.append(i + 1 < results.size() ? "    },\n" : "    }\n");
+		}
+		return json.append("]\n").toString();
+	}
+
+	private static String number(double value) {
+		return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.3f", value);
+	}
+
+}
@@ -0,0 +1,218 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.MathContext;
+import java.util.List;
+
+import advancedjavacalculator.Parser.CalcParser;
+import advancedjavacalculator.Type.Num;
+import advancedjavacalculator.Type.RealNum;
+
+/**
+ * The benchmark suite for the lexer, parser, interpreter and builtins.
+ *
+ * javac -d out advancedjavacalculator/*.java bench/advancedjavacalculator/*.java
+ * java -cp out advancedjavacalculator.Benchmarks [options]
+ *
+ * Options:
+ *	-o <file>	write the results as JMH style JSON to a file
+ *	-f <text>	only run benchmarks whose name or params contain the text
+ *	-wi <n>		warmup iterations (default 3)
+ *	-i <n>		measurement iterations (default 5)
+ *	-t <ms>		length of one iteration in milliseconds (default 1000)
+ */
+public class Benchmarks {
+
+	private static final String[] DEFINITIONS = {
+		"f(x) = x * x + 2 * x + 1",
+		"g(x, y) = (x - y) * (x + y) / 2",
+		"h(x) = x % 7 + x ^ 2 - 3 * x",
+	};
+
+	private static final String CALLS = "f(1.5) + g(3, 4) + h(12) + f(2.25) * g(7, 0.5) - h(0.75)";
+
+	private static final String ROOTS = "root(2, 7) + root(3, 7)";
+
+	private static final String ARITHMETIC = "(1.5 + 2.25) * 4 - 3.75 / 2.5 + 17 % 5 - 0x1F * 2";
+
+	public static void main(String[] args) throws Exception {
+		String output = null;
+		String filter = null;
+		int warmupIterations = 3;
+		int iterations = 5;
+		long iterationMillis = 1000;
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (args[i].equals("-o")) {
+				output = args[i + 1];
+			} else if (args[i].equals("-f")) {
+				filter = args[i + 1];
+			} else if (args[i].equals("-wi")) {
+				warmupIterations = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("-i")) {
+				iterations = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("-t")) {
+				iterationMillis = Long.parseLong(args[i + 1]);
+			}
+		}
+
+		Bench bench = new Bench(warmupIterations, iterations, iterationMillis, filter);
+		lexer(bench);
+		parser(bench);
+		interpreter(bench);
+		builtins(bench);
+		constants(bench);
+
+		if (output != null) {
+			write(output, bench.toJson());
+		} else {
+			System.out.print(bench.toJson());
+		}
+	}
+
+	private static void lexer(Bench bench) throws Exception {
+		for (final int statements : new int[] { 10, 1000, 100000 }) {
+			StringBuilder input = new StringBuilder();
+			for (int i = 0; i < statements; i++) {
+				input.append("f").append(i % 10).append("(x, y) = (x + 1.5e3) * y ^ 2 - 0xFF % x\n");
+			}
+			final String text = input.toString();
+
+			bench.run("lexer.doString", Bench.params("chars", Integer.toString(text.length())),
+					() -> Lexer.doString(text));
+		}
+	}
+
+	private static void parser(Bench bench) throws Exception {
+		for (final int depth : new int[] { 10, 100, 500 }) {
+			StringBuilder input = new StringBuilder();
+			for (int i = 0; i < depth; i++) {
+				input.append("(1 + ");
+			}
+			input.append("1");
+			for (int i = 0; i < depth; i++) {
+				input.append(")");
+			}
+			final List<Token> tokens = Lexer.doString(input.toString());
+
+			bench.run("parser.parseExpr", Bench.params("depth", Integer.toString(depth)),
+					() -> new CalcParser(tokens).parseExpr());
+		}
+	}
+
+	private static void interpreter(Bench bench) throws Exception {
+		for (final String mode : new String[] { "exact", "fast", "adaptive" }) {
+			final Interpreter interpreter = interpreter(mode, false);
+			final Expr expr = parse(ARITHMETIC);
+
+			bench.run("interpreter.arithmetic", Bench.params("mode", mode),
+					() -> interpreter.interpretExpr(expr, interpreter.getScope()));
+		}
+
+		for (final String mode : new String[] { "exact", "fast", "adaptive" }) {
+			for (final boolean compiling : new boolean[] { false, true }) {
+				if (!mode.equals("exact") && compiling) {
+					continue;
+				}
+
+				final Interpreter interpreter = interpreter(mode, compiling);
+				final Expr expr = parse(CALLS);
+
+				bench.run("interpreter.functionCalls",
+						Bench.params("mode", mode, "compiling", Boolean.toString(compiling)),
+						() -> interpreter.interpretExpr(expr, interpreter.getScope()));
+			}
+		}
+
+		for (final int precision : new int[] { 1000, 5000 }) {
+			for (final boolean parallel : new boolean[] { false, true }) {
+				final Interpreter interpreter = interpreter("exact", false);
+				interpreter.setMathContext(new MathContext(precision));
+				interpreter.setParallel(parallel);
+				final Expr expr = parse(ROOTS);
+
+				bench.run("interpreter.parallel", Bench.params("precision", Integer
+						.toString(precision), "parallel", Boolean.toString(parallel)),
+						() -> interpreter.interpretExpr(expr, interpreter.getScope()));
+			}
+		}
+	}
+
+	private static void builtins(Bench bench) throws Exception {
+		for (final int precision : new int[] { 16, 34, 100, 1000, 10000 }) {
+			final Interpreter interpreter = new Interpreter();
+			interpreter.setMathContext(new MathContext(precision));
+			final Num two = new RealNum("2", interpreter.getMathContext());
+			final Num seven = new RealNum("7", interpreter.getMathContext());
+			final Num ten = new RealNum("10", interpreter.getMathContext());
+
+			bench.run("builtins.sqrt", Bench.params("precision", Integer.toString(precision)),
+					() -> BuiltinMethods.sqrt(interpreter, two));
+			bench.run("builtins.cbrt", Bench.params("precision", Integer.toString(precision)),
+					() -> BuiltinMethods.cbrt(interpreter, ten));
+			bench.run("builtins.root", Bench.params("precision", Integer.toString(precision),
+					"root", "7"), () -> BuiltinMethods.root(interpreter, seven, ten));
+		}
+
+		for (final int precision : new int[] { 16, 34, 100, 1000 }) {
+			final MathContext mathContext = new MathContext(precision);
+			final Num base = new RealNum("1.5", mathContext);
+			final Num whole = new RealNum("1234", mathContext);
+			final Num fraction = new RealNum("2.75", mathContext);
+
+			bench.run("pow.whole", Bench.params("precision", Integer.toString(precision)),
+					() -> base.pow(whole, mathContext));
+			bench.run("pow.fraction", Bench.params("precision", Integer.toString(precision)),
+					() -> base.pow(fraction, mathContext));
+		}
+	}
+
+	/**
+	 * The series themselves, without the cache in {@link Constant}.
+	 */
+	private static void constants(Bench bench) throws Exception {
+		for (final int precision : new int[] { 34, 1000, 10000 }) {
+			final MathContext mathContext = new MathContext(precision);
+
+			bench.run("constants.pi", Bench.params("precision", Integer.toString(precision)),
+					() -> BigMath.pi(mathContext));
+			bench.run("constants.e", Bench.params("precision", Integer.toString(precision)),
+					() -> BigMath.e(mathContext));
+			bench.run("constants.ln2", Bench.params("precision", Integer.toString(precision)),
+					() -> BigMath.ln2(mathContext));
+		}
+	}
+
+	private static Interpreter interpreter(String mode, boolean compiling) throws Exception {
+		Interpreter interpreter = new Interpreter();
+		interpreter.setNumberMode(Interpreter.NumberMode.valueOf(Character.toUpperCase(mode
+				.charAt(0)) + mode.substring(1)));
+		interpreter.setCompiling(compiling);
+		for (String definition : DEFINITIONS) {
+			interpreter.interpretExpr(parse(definition), interpreter.getScope());
+		}
+		return interpreter;
+	}
+
+	private static Expr parse(String input) throws CalcException {
+		return new CalcParser(Lexer.doString(input)).parseExpr();
+	}
+
+	private static void write(String output, String json) throws IOException {
+		Writer writer = new FileWriter(output);
+		try {
+			writer.write(json);
+		} finally {
+			writer.close();
+		}
+	}
+
+}
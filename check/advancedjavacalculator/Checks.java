@@ -0,0 +1,226 @@
+// This file is distributed under the Feel free to use it or add anything to it license.
+// You are permitted to:
+// - Use the software
+// - Add anything to the software
+//
+
+package advancedjavacalculator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.math.MathContext;
+import java.util.List;
+
+import advancedjavacalculator.Interpreter.NumberMode;
+import advancedjavacalculator.Type.Obj;
+
+/**
+ * Runs inputs whose results are known through the calculator and reports the
+ * ones that come out differently. Exits with 1 if any does.
+ */
+public class Checks {
+
+	private static int checks, failures;
+
+	public static void main(String[] args) {
+		budget();
+		parsing();
+		script();
+		forks();
+		calls();
+		for (NumberMode mode : NumberMode.values()) {
+			roots(mode);
+			locals(mode);
+		}
+
+		System.out.printf("%d checks, %d failed%n", checks, failures);
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * An input is parsed a statement at a time, up to the first one that
+	 * doesn't end its line, and only an error in the first one counts.
+	 */
+	private static void parsing() {
+		Interpreter interpreter = new Interpreter();
+
+		check(interpreter, "1 2", "1");
+		check(interpreter, "1,2", "1");
+		check(interpreter, "x = 4 5", "4");
+		check(interpreter, "1 +", "Error -> Parser: Invalid type");
+
+		checks++;
+		try {
+			int statements = ParseCache.parseUncached("1\n2 3\n4").size();
+			if (statements != 2) {
+				failures++;
+				System.out.printf("1\\n2 3\\n4: expected 2 statements, got %d%n", statements);
+			}
+		} catch (CalcException e) {
+			failures++;
+			System.out.printf("1\\n2 3\\n4: %s%n", e.getMessage());
+		}
+	}
+
+	/**
+	 * The estimate made before a statement runs only turns down results that
+	 * are certainly over the budget.
+	 */
+	private static void budget() {
+		Interpreter interpreter = new Interpreter();
+		interpreter.setBudget(new Budget(10000000, 100000, 100000, 1000000));
+
+		check(interpreter, "(2-1)^999999", "1");
+		check(interpreter, "(0.5+0.5)^999999", "1");
+		check(interpreter, "(1+1)^200000", null);
+		check(interpreter, "(1+0.5)^300000", null);
+		check(interpreter, "2^200000", null);
+		check(interpreter, "1.5^300000", null);
+		check(interpreter, "x = 1+1", "2");
+		check(interpreter, "x^200000", null);
+
+		check(interpreter, "(10+10)^200000",
+				"Error -> Interpreter: The result of (10 + 10) ^ 200000 is out of range");
+		check(interpreter, "2^2000000",
+				"Error -> Interpreter: The exponent of 2 ^ 2000000 is above the limit of 1000000");
+	}
+
+	/**
+	 * Odd roots of negative numbers are negative in every number mode.
+	 */
+	private static void roots(NumberMode mode) {
+		Interpreter interpreter = new Interpreter();
+		interpreter.setNumberMode(mode);
+
+		check(interpreter, "root(3, -8)", "-2");
+		check(interpreter, "root(5, -32)", "-2");
+		check(interpreter, "root(-3, -8)", "-0.5");
+		check(interpreter, "cbrt(-8)", "-2");
+		check(interpreter, "x = -27", "-27");
+		check(interpreter, "root(3, x)", "-3");
+	}
+
+	/**
+	 * A variable assigned in a function body belongs to the call, and the
+	 * value assigned reads the arguments.
+	 */
+	private static void locals(NumberMode mode) {
+		Interpreter interpreter = new Interpreter();
+		interpreter.setNumberMode(mode);
+
+		check(interpreter, "x = 100", "100");
+		check(interpreter, "f(x) = (y = x) + 1", null);
+		check(interpreter, "f(3)", "4");
+		check(interpreter, "y", "Error -> Interpreter: The variable y was not found");
+		check(interpreter, "g(x) = (x = 5) + x", null);
+		check(interpreter, "g(1)", "10");
+		check(interpreter, "y = 7", "7");
+		check(interpreter, "h(a) = y + (y = a) + y", null);
+		check(interpreter, "h(1)", "9");
+		check(interpreter, "y", "7");
+		check(interpreter, "k(x) = (j(z) = z) + 1",
+				"Error -> Interpreter: A function can't be defined inside another one");
+	}
+
+	/**
+	 * Operands evaluated on other threads give what evaluating them in order
+	 * gives.
+	 */
+	private static void forks() {
+		Interpreter interpreter = new Interpreter();
+		interpreter.setMathContext(new MathContext(3000));
+		interpreter.setParallel(true);
+
+		check(interpreter, "g(a, b, c) = c", null);
+		check(interpreter, "g((y = 5), root(7, y) ^ 0.3, root(7, y) ^ 0.3) - root(7, 5) ^ 0.3",
+				"0");
+		check(interpreter, "g(1, root(7, 5) ^ 0.3, root(7, 6) ^ 0.3) - root(7, 6) ^ 0.3", "0");
+		checks++;
+		if (interpreter.getForks() == 0) {
+			failures++;
+			System.out.println("g(1, root(7, 5) ^ 0.3, root(7, 6) ^ 0.3) wasn't forked");
+		}
+	}
+
+	/**
+	 * A builtin call counts once, also when it goes through the argument array.
+	 */
+	private static void calls() {
+		Interpreter interpreter = new Interpreter();
+
+		check(interpreter, "sqrt(4, 9)",
+				"Error -> Interpreter: Number of arguments given doesn't match expected number");
+		check(interpreter, "sqrt(4)", "2");
+		checks++;
+		long calls = interpreter.getBuiltin("sqrt").getCalls();
+		if (calls != 2) {
+			failures++;
+			System.out.printf("sqrt(4, 9) and sqrt(4): expected 2 calls, got %d%n", calls);
+		}
+	}
+
+	/**
+	 * A parallel script writes the result of a statement once no more input
+	 * is waiting, not when its chunk fills or the input ends.
+	 */
+	private static void script() {
+		Interpreter interpreter = new Interpreter();
+		interpreter.setParallel(true);
+		StringWriter results = new StringWriter();
+		PrintWriter out = new PrintWriter(results, true);
+
+		try (PipedWriter input = new PipedWriter(); BufferedReader in = new BufferedReader(
+				new PipedReader(input))) {
+			Thread runner = new Thread(() -> new ScriptRunner(interpreter).run(in, out));
+			runner.setDaemon(true);
+			runner.start();
+			input.write("1 + 1\n");
+			input.flush();
+
+			long end = System.currentTimeMillis() + 5000;
+			while (results.toString().isEmpty() && System.currentTimeMillis() < end) {
+				Thread.sleep(10);
+			}
+			checks++;
+			if (!results.toString().trim().equals("2")) {
+				failures++;
+				System.out.printf("1 + 1 in a parallel script: expected 2, got %s%n", results
+						.toString().trim());
+			}
+		} catch (IOException | InterruptedException e) {
+			checks++;
+			failures++;
+			System.out.printf("1 + 1 in a parallel script: %s%n", e);
+		}
+	}
+
+	/**
+	 * @param expected the result, or null for any result that isn't an error
+	 */
+	private static void check(Interpreter interpreter, String input, String expected) {
+		String actual = evaluate(interpreter, input);
+		checks++;
+		if (expected == null ? actual.startsWith("Error") : !actual.equals(expected)) {
+			failures++;
+			System.out.printf("%s: expected %s, got %s%n", input, (expected == null)
+					? "a number" : expected, actual);
+		}
+	}
+
+	private static String evaluate(Interpreter interpreter, String input) {
+		try {
+			List<Expr> exprs = interpreter.getParseCache().parse(input);
+			Obj ret = interpreter.interpretExpr(exprs.get(0), interpreter.getScope());
+			return String.valueOf(ret);
+		} catch (Exception e) {
+			return String.format("Error -> %s", e.getMessage());
+		}
+	}
+
+}